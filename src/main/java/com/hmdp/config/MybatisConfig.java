@@ -2,15 +2,25 @@ package com.hmdp.config;
 
 import com.baomidou.mybatisplus.annotation.DbType;
 import com.baomidou.mybatisplus.extension.plugins.MybatisPlusInterceptor;
+import com.baomidou.mybatisplus.extension.plugins.handler.TableNameHandler;
+import com.baomidou.mybatisplus.extension.plugins.inner.DynamicTableNameInnerInterceptor;
 import com.baomidou.mybatisplus.extension.plugins.inner.PaginationInnerInterceptor;
+import com.hmdp.utils.VoucherOrderPartitions;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.HashMap;
+import java.util.Map;
+
 @Configuration
 public class MybatisConfig {
     @Bean
     public MybatisPlusInterceptor mybatisPlusInterceptor() {
         MybatisPlusInterceptor interceptor = new MybatisPlusInterceptor();
+        //订单表按月分表，表名由当前线程指定的分表决定
+        Map<String, TableNameHandler> tableNameHandlers = new HashMap<>();
+        tableNameHandlers.put(VoucherOrderPartitions.TABLE, (sql, tableName) -> VoucherOrderPartitions.routeTable(tableName));
+        interceptor.addInnerInterceptor(new DynamicTableNameInnerInterceptor(tableNameHandlers));
         interceptor.addInnerInterceptor(new PaginationInnerInterceptor(DbType.MYSQL));
         return interceptor;
     }
@@ -6,6 +6,7 @@ import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
@@ -26,6 +27,18 @@ public class ShopController {
     @Resource
     public IShopService shopService;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    /**
+     * 查询各级缓存的命中率
+     * @return 一级缓存、redis的命中次数和命中率，以及查询数据库的次数
+     */
+    @GetMapping("/cache/stats")
+    public Result queryCacheStats() {
+        return Result.ok(cacheClient.stats());
+    }
+
     /**
      * 根据id查询商铺信息
      * @param id 商铺id
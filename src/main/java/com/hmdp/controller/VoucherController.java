@@ -3,6 +3,7 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
+import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
 import org.springframework.web.bind.annotation.*;
 
@@ -22,6 +23,8 @@ public class VoucherController {
 
     @Resource
     private IVoucherService voucherService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
 
     /**
      * 新增普通券
@@ -45,6 +48,38 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 预热秒杀券到Redis，redis数据丢失后也可以用来恢复
+     * @param voucherId 优惠券id，不传则预热所有未结束的秒杀券
+     * @param force 是否用数据库库存覆盖redis中已有的库存
+     * @return 预热的秒杀券数量
+     */
+    @PostMapping("seckill/preheat")
+    public Result preheatSeckillVoucher(
+            @RequestParam(value = "voucherId", required = false) Long voucherId,
+            @RequestParam(value = "force", defaultValue = "false") Boolean force) {
+        if (voucherId == null) {
+            return Result.ok(seckillVoucherService.preheatAll(force));
+        }
+        return seckillVoucherService.preheat(voucherId, force) ? Result.ok(1) : Result.fail("秒杀券不存在");
+    }
+
+    /**
+     * 秒杀券库存对账，以数据库为准修正redis
+     * @param voucherId 优惠券id，为空时对账所有未结束的秒杀券
+     * @param dryRun 为true时只返回对账报告，不修改数据
+     * @return 对账报告
+     */
+    @PostMapping("seckill/reconcile")
+    public Result reconcileSeckillVoucher(
+            @RequestParam(value = "voucherId", required = false) Long voucherId,
+            @RequestParam(value = "dryRun", defaultValue = "true") Boolean dryRun) {
+        if (voucherId == null) {
+            return Result.ok(seckillVoucherService.reconcileAll(dryRun));
+        }
+        return Result.ok(seckillVoucherService.reconcile(voucherId, dryRun));
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
@@ -2,13 +2,23 @@ package com.hmdp.controller;
 
 
 import com.hmdp.dto.Result;
+import com.hmdp.entity.VoucherOrder;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.OrderBatchMetrics;
+import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.UserHolder;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.List;
 
 /**
  * <p>
@@ -24,10 +34,80 @@ public class VoucherOrderController {
 
     @Resource
     private IVoucherOrderService voucherOrderService;
+    @Resource
+    private OrderBatchMetrics orderBatchMetrics;
 
     @PostMapping("seckill/{id}")
-    public Result seckillVoucher(@PathVariable("id") Long voucherId) {
+    public Result seckillVoucher(@PathVariable("id") Long voucherId,
+                                 @RequestParam(value = "ticket", required = false) String ticket) {
+
+        return voucherOrderService.seckillVoucher(voucherId, ticket);
+    }
+
+    /**
+     * 领取秒杀排队号
+     * @param voucherId 优惠券id
+     * @return 排队号position、是否放行admitted、预计放行时间admitAt、下单时提交的排队凭证ticket
+     */
+    @PostMapping("seckill/{id}/ticket")
+    public Result takeTicket(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.takeTicket(voucherId);
+    }
+
+    /**
+     * 长轮询排队号的放行状态，轮到时立即返回，否则最多等待25秒返回排队进度
+     * @param voucherId 优惠券id
+     */
+    @GetMapping("seckill/{id}/ticket")
+    public DeferredResult<Result> pollTicket(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.pollTicket(voucherId);
+    }
+
+    /**
+     * 查询秒杀订单状态，状态只保存在redis中
+     * @param orderId 订单id
+     * @return PENDING：排队中；CREATED：已创建；FAILED：创建失败，reason为原因
+     */
+    @GetMapping("status/{orderId}")
+    public Result queryOrderStatus(@PathVariable("orderId") Long orderId) {
+        return voucherOrderService.queryOrderStatus(orderId);
+    }
+
+    /**
+     * 按下单时间查询当前用户的订单，滚动分页
+     * @param begin 开始时间（包含）
+     * @param end 结束时间（不包含）
+     * @param lastId 上一页最后一条订单的id，第一页不传
+     * @return 订单列表，lastId为下一页的参数
+     */
+    @GetMapping("/of/me")
+    public Result queryMyOrders(
+            @RequestParam("begin") @DateTimeFormat(pattern = "yyyy-MM-dd HH:mm:ss") LocalDateTime begin,
+            @RequestParam("end") @DateTimeFormat(pattern = "yyyy-MM-dd HH:mm:ss") LocalDateTime end,
+            @RequestParam(value = "lastId", required = false) Long lastId) {
+        List<VoucherOrder> orders = voucherOrderService.queryOrdersByTime(
+                UserHolder.getUser().getId(), begin, end, lastId, SystemConstants.MAX_PAGE_SIZE);
+        return Result.ok(orders);
+    }
+
+    /**
+     * 统计当前用户一段时间内的订单数，只能统计自己的订单
+     * @param voucherId 优惠券id，为空时统计所有优惠券
+     */
+    @GetMapping("/count")
+    public Result countOrders(
+            @RequestParam("begin") @DateTimeFormat(pattern = "yyyy-MM-dd HH:mm:ss") LocalDateTime begin,
+            @RequestParam("end") @DateTimeFormat(pattern = "yyyy-MM-dd HH:mm:ss") LocalDateTime end,
+            @RequestParam(value = "voucherId", required = false) Long voucherId) {
+        return Result.ok(voucherOrderService.countOrdersByTime(UserHolder.getUser().getId(), voucherId, begin, end));
+    }
 
-        return voucherOrderService.seckillVoucher(voucherId);
+    /**
+     * 查询订单批量落库的统计指标
+     * @return 批次数、平均批大小、批次耗时等
+     */
+    @GetMapping("metrics")
+    public Result queryOrderMetrics() {
+        return Result.ok(orderBatchMetrics.snapshot());
     }
 }
@@ -0,0 +1,13 @@
+package com.hmdp.dto;
+
+/**
+ * 秒杀订单的异步创建状态
+ */
+public enum OrderStatus {
+    //已抢到，订单在队列中等待创建
+    PENDING,
+    //订单已经写入数据库
+    CREATED,
+    //订单创建失败
+    FAILED
+}
@@ -2,6 +2,11 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.Update;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +18,23 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 多行insert，一条语句写入一批订单
+     * @param orders 订单列表
+     * @return 写入行数
+     */
+    int insertBatch(@Param("orders") List<VoucherOrder> orders);
+
+    /**
+     * 按原表结构创建订单分表
+     * @param table 分表名，由程序按月份生成
+     */
+    @Update("CREATE TABLE IF NOT EXISTS ${table} LIKE tb_voucher_order")
+    int createPartitionTable(@Param("table") String table);
+
+    /**
+     * 查询已有的订单分表
+     */
+    @Select("SELECT table_name FROM information_schema.tables WHERE table_schema = DATABASE() AND table_name LIKE 'tb\\_voucher\\_order\\_%'")
+    List<String> listPartitionTables();
 }
@@ -3,6 +3,9 @@ package com.hmdp.service;
 import com.hmdp.entity.SeckillVoucher;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.Map;
+
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 服务类
@@ -13,4 +16,39 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface ISeckillVoucherService extends IService<SeckillVoucher> {
 
+    /**
+     * 预热所有未结束的秒杀券
+     * @param force 为true时用数据库库存覆盖redis中已有的库存
+     * @return 预热的秒杀券数量
+     */
+    int preheatAll(boolean force);
+
+    /**
+     * 预热一个秒杀券：秒杀券信息、库存、已下单用户
+     * @param voucherId 优惠券id
+     * @param force 为true时用数据库库存覆盖redis中已有的库存
+     * @return 秒杀券不存在时返回false
+     */
+    boolean preheat(Long voucherId, boolean force);
+
+    /**
+     * 异步预热，同一个秒杀券同时只会有一个预热任务
+     * @param voucherId 优惠券id
+     */
+    void preheatAsync(Long voucherId);
+
+    /**
+     * 对账所有未结束的秒杀券
+     * @param dryRun 为true时只输出报告，不修改数据
+     * @return 每个秒杀券的对账报告
+     */
+    List<Map<String, Object>> reconcileAll(boolean dryRun);
+
+    /**
+     * 以数据库为准，对账一个秒杀券在redis中的库存和已下单用户
+     * @param voucherId 优惠券id
+     * @param dryRun 为true时只输出报告，不修改数据
+     * @return 对账报告
+     */
+    Map<String, Object> reconcile(Long voucherId, boolean dryRun);
 }
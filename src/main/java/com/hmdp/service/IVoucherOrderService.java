@@ -4,6 +4,12 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+
 /**
  * <p>
  *  服务类
@@ -17,9 +23,66 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
     /**
      * 创建秒杀订单
      * @param voucherId
+     * @param ticket 领号时返回的排队凭证，秒杀券没有开启排队时可以为空
+     * @return
+     */
+    Result seckillVoucher(Long voucherId, String ticket);
+
+    /**
+     * 领取秒杀排队号
+     * @param voucherId
+     * @return
+     */
+    Result takeTicket(Long voucherId);
+
+    /**
+     * 长轮询排队号的放行状态
+     * @param voucherId
+     * @return
+     */
+    DeferredResult<Result> pollTicket(Long voucherId);
+
+    Result createVoucherOrder(VoucherOrder voucherOrder);
+
+    /**
+     * 批量创建秒杀订单
+     * @param voucherOrders
+     * @return 没有创建的订单：订单id -> 原因
+     */
+    Map<Long, String> createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 查询秒杀订单的异步创建状态
+     * @param orderId
      * @return
      */
-    Result seckillVoucher(Long voucherId);
+    Result queryOrderStatus(Long orderId);
 
-    void createVoucherOrder(VoucherOrder voucherOrder);
+    /**
+     * 按下单时间查询订单，时间范围换算为主键范围，不扫描全表
+     * @param userId 用户id，为空时查询所有用户
+     * @param begin 开始时间（包含）
+     * @param end 结束时间（不包含）
+     * @param lastId 上一页最后一条订单的id，为空时从头开始
+     * @param size 每页条数
+     * @return
+     */
+    List<VoucherOrder> queryOrdersByTime(Long userId, LocalDateTime begin, LocalDateTime end, Long lastId, int size);
+
+    /**
+     * 统计一段时间内的订单数
+     * @param userId 用户id，为空时统计所有用户
+     * @param voucherId 优惠券id，为空时统计所有优惠券
+     * @param begin 开始时间（包含）
+     * @param end 结束时间（不包含）
+     * @return
+     */
+    int countOrdersByTime(Long userId, Long voucherId, LocalDateTime begin, LocalDateTime end);
+
+    /**
+     * 取消超时未支付的订单，归还库存
+     * @param orderIds
+     * @return 实际取消的订单
+     */
+    List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds);
 }
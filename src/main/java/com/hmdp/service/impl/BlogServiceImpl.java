@@ -2,7 +2,6 @@ package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
@@ -12,16 +11,22 @@ import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BloomFilterGuard;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -39,6 +44,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private IUserService userService;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private BloomFilterGuard bloomFilterGuard;
+    @Resource
+    private CacheClient cacheClient;
 
     @Override
     public Result queryHotBlog(Integer current) {
@@ -48,11 +57,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog ->{
-            this.queryBlogUser(blog);
-            this.isBlogLiked(blog);
-        });
+        // 批量查询用户和是否被点赞，访问redis和数据库的次数不随博文数增加
+        queryBlogUsers(records);
+        isBlogLiked(records);
         return Result.ok(records);
     }
 
@@ -70,6 +77,31 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         return Result.ok(blog);
     }
 
+    /**
+     * 用管道一次查询当前用户是否点赞过这些博文
+     */
+    private void isBlogLiked(List<Blog> blogs) {
+        UserDTO user = UserHolder.getUser();
+        if (user == null || blogs.isEmpty()) {
+            //用户未登录，无需查询是否点赞
+            return;
+        }
+        String userId = user.getId().toString();
+        List<Object> scores = stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object execute(RedisOperations operations) {
+                for (Blog blog : blogs) {
+                    operations.opsForZSet().score(RedisConstants.BLOG_LIKED_KEY + blog.getId(), userId);
+                }
+                return null;
+            }
+        });
+        for (int i = 0; i < blogs.size(); i++) {
+            blogs.get(i).setIsLike(scores.get(i) != null);
+        }
+    }
+
     private void isBlogLiked(Blog blog) {
         //获取登录用户
         UserDTO user = UserHolder.getUser();
@@ -122,13 +154,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         }
         //解析其中的用户id
         List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
-        String idStr = StrUtil.join(",", ids);
-        //根据用户id查询用户
-        //where id in (5,1) order by field (id,5,1)
-        List<UserDTO> userDTOS = userService.query()
-                .in("id",ids).last("ORDER BY FIELD(id,"+idStr+")").list()
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+        //根据用户id批量查询用户，结果和点赞顺序一致
+        List<UserDTO> userDTOS = queryUsers(ids).stream()
+                .filter(Objects::nonNull)
                 .collect(Collectors.toList());
 
         //返回
@@ -136,9 +164,50 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     }
 
     private void queryBlogUser(Blog blog){
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+        queryBlogUsers(Collections.singletonList(blog));
+    }
+
+    /**
+     * 批量查询博文的作者
+     */
+    private void queryBlogUsers(List<Blog> blogs) {
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toList());
+        List<UserDTO> users = queryUsers(userIds);
+        for (int i = 0; i < blogs.size(); i++) {
+            UserDTO user = users.get(i);
+            if (user != null) {
+                blogs.get(i).setName(user.getNickName());
+                blogs.get(i).setIcon(user.getIcon());
+            }
+        }
+    }
+
+    /**
+     * 通过缓存批量查询用户，只缓存UserDTO中的公开信息
+     * @return 和ids顺序一致的用户，不存在的用户为null
+     */
+    private List<UserDTO> queryUsers(List<Long> ids) {
+        return cacheClient.queryBatchWithPassThrough(
+                RedisConstants.CACHE_USER_KEY,
+                ids,
+                UserDTO.class,
+                missIds -> userService.listByIds(missIds).stream()
+                        .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class))),
+                RedisConstants.CACHE_USER_TTL,
+                TimeUnit.MINUTES);
+    }
+
+    /**
+     * 新增探店博文，同时加入布隆过滤器
+     * @param blog
+     * @return
+     */
+    @Override
+    public boolean save(Blog blog) {
+        boolean saved = super.save(blog);
+        if (saved) {
+            bloomFilterGuard.add(RedisConstants.CACHE_BLOG_KEY, blog.getId());
+        }
+        return saved;
     }
 }
@@ -1,11 +1,42 @@
 package com.hmdp.service.impl;
 
 import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockClient;
+import com.hmdp.utils.VoucherOrderPartitions;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 服务实现类
@@ -14,7 +45,336 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2022-01-04
  */
+@Slf4j
 @Service
 public class SeckillVoucherServiceImpl extends ServiceImpl<SeckillVoucherMapper, SeckillVoucher> implements ISeckillVoucherService {
 
+    //分页读取数据库的每页大小
+    private static final int PREHEAT_PAGE_SIZE = 1000;
+    //对账报告中每类差异最多列出的用户数
+    private static final int REPORT_SAMPLE_SIZE = 20;
+
+    @Resource
+    private VoucherMapper voucherMapper;
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+    @Resource
+    private SeckillStockClient seckillStockClient;
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private VoucherOrderPartitions voucherOrderPartitions;
+    @Resource
+    private RedissonClient redissonClient;
+    //开始前多少分钟预热
+    @Value("${hmdp.seckill.preheat-minutes:10}")
+    private long preheatMinutes;
+    //定时对账是否直接修正差异，为false时只输出报告
+    @Value("${hmdp.seckill.reconcile.auto-apply:false}")
+    private boolean reconcileAutoApply;
+
+    //正在预热的秒杀券，避免重复提交
+    private final Set<Long> preheating = ConcurrentHashMap.newKeySet();
+    private static final ExecutorService PREHEAT_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void preheatOnStartup() {
+        //启动时只补齐缺失的key，不覆盖正在进行的秒杀
+        PREHEAT_EXECUTOR.submit(() -> {
+            try {
+                int count = preheatAll(false);
+                log.info("秒杀券预热完成，共{}个", count);
+            } catch (Exception e) {
+                log.error("秒杀券预热失败", e);
+            }
+        });
+    }
+
+    /**
+     * 定时预热即将开始的秒杀，保证开抢的第一秒不会遇到冷key
+     */
+    @Scheduled(fixedDelay = 60_000)
+    public void preheatUpcoming() {
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> upcoming = query()
+                .between("begin_time", now, now.plusMinutes(preheatMinutes))
+                .list();
+        for (SeckillVoucher seckillVoucher : upcoming) {
+            if (!seckillStockClient.isStockLoaded(seckillVoucher.getVoucherId())) {
+                preheat(seckillVoucher, false);
+            }
+        }
+    }
+
+    @Override
+    public int preheatAll(boolean force) {
+        int count = 0;
+        long lastId = 0;
+        while (true) {
+            //按主键分页读取未结束的秒杀券 where voucher_id > ? and end_time > now order by voucher_id limit n
+            List<SeckillVoucher> page = query()
+                    .gt("voucher_id", lastId)
+                    .gt("end_time", LocalDateTime.now())
+                    .orderByAsc("voucher_id")
+                    .last("LIMIT " + PREHEAT_PAGE_SIZE)
+                    .list();
+            for (SeckillVoucher seckillVoucher : page) {
+                preheat(seckillVoucher, force);
+            }
+            count += page.size();
+            if (page.size() < PREHEAT_PAGE_SIZE) {
+                return count;
+            }
+            lastId = page.get(page.size() - 1).getVoucherId();
+        }
+    }
+
+    @Override
+    public boolean preheat(Long voucherId, boolean force) {
+        SeckillVoucher seckillVoucher = getById(voucherId);
+        if (seckillVoucher == null) {
+            return false;
+        }
+        preheat(seckillVoucher, force);
+        return true;
+    }
+
+    @Override
+    public void preheatAsync(Long voucherId) {
+        if (!preheating.add(voucherId)) {
+            return;
+        }
+        PREHEAT_EXECUTOR.submit(() -> {
+            try {
+                preheat(voucherId, false);
+            } catch (Exception e) {
+                log.error("秒杀券{}预热失败", voucherId, e);
+            } finally {
+                preheating.remove(voucherId);
+            }
+        });
+    }
+
+    /**
+     * 定时对账，修正redis与数据库之间的库存和已下单用户差异
+     */
+    @Scheduled(fixedDelay = 600_000, initialDelay = 600_000)
+    public void reconcileScheduled() {
+        try {
+            reconcileAll(!reconcileAutoApply);
+        } catch (Exception e) {
+            log.error("秒杀券对账失败", e);
+        }
+    }
+
+    @Override
+    public List<Map<String, Object>> reconcileAll(boolean dryRun) {
+        List<Map<String, Object>> reports = new ArrayList<>();
+        long lastId = 0;
+        while (true) {
+            List<SeckillVoucher> page = query()
+                    .select("voucher_id")
+                    .gt("voucher_id", lastId)
+                    .gt("end_time", LocalDateTime.now())
+                    .orderByAsc("voucher_id")
+                    .last("LIMIT " + PREHEAT_PAGE_SIZE)
+                    .list();
+            for (SeckillVoucher seckillVoucher : page) {
+                reports.add(reconcile(seckillVoucher.getVoucherId(), dryRun));
+            }
+            if (page.size() < PREHEAT_PAGE_SIZE) {
+                return reports;
+            }
+            lastId = page.get(page.size() - 1).getVoucherId();
+        }
+    }
+
+    @Override
+    public Map<String, Object> reconcile(Long voucherId, boolean dryRun) {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("voucherId", voucherId);
+        report.put("dryRun", dryRun);
+        if (!seckillStockClient.isStockLoaded(voucherId)) {
+            report.put("action", "SKIPPED_NOT_LOADED");
+            return report;
+        }
+        //拿库存同步的写锁，与取消超时订单互斥，避免订单在数据库已取消、redis还没归还库存时把库存修正两次
+        //不指定持有时间，由redisson看门狗续期，对账时间再长也不会中途失效
+        RLock lock = redissonClient.getReadWriteLock(RedisConstants.SECKILL_STOCK_SYNC_LOCK).writeLock();
+        if (!dryRun && !lock.tryLock()) {
+            report.put("action", "SKIPPED_BUSY");
+            return report;
+        }
+        try {
+            return reconcile(voucherId, dryRun, report);
+        } finally {
+            if (!dryRun) {
+                lock.unlock();
+            }
+        }
+    }
+
+    private Map<String, Object> reconcile(Long voucherId, boolean dryRun, Map<String, Object> report) {
+        //1.先读redis库存，再确认消息队列已消费完，最后读数据库
+        //  读redis之前被秒杀的订单此时都已经落库；之后的秒杀会改变redis库存，修正时用库存做CAS，会放弃本次修正
+        //节点租用的库存不在库存key中，等租约归还后再对账
+        if (seckillStockClient.hasLeases(voucherId)) {
+            report.put("action", "SKIPPED_LEASED");
+            return report;
+        }
+        long redisStock = seckillStockClient.totalStock(voucherId);
+        boolean drained = seckillStockClient.isOrderStreamDrained();
+        SeckillVoucher seckillVoucher = getById(voucherId);
+        if (seckillVoucher == null) {
+            report.put("action", "SKIPPED_NOT_FOUND");
+            return report;
+        }
+        long dbStock = seckillVoucher.getStock();
+        //2.分页读取订单，每页和redis比较一次，不把全部用户读进内存
+        //  数据库中有、redis中没有：redis数据丢失，用户可以重复下单
+        //  数据库中已取消、还在延时队列中：归还redis库存失败，等待重试，库存已经计入数据库库存
+        List<Long> missingUsers = new ArrayList<>();
+        List<Long> settledOrders = new ArrayList<>();
+        scanOrders(seckillVoucher, true, orders -> {
+            List<Long> users = new ArrayList<>();
+            List<Long> cancelled = new ArrayList<>();
+            for (VoucherOrder order : orders) {
+                if (order.getStatus() == 4) {
+                    cancelled.add(order.getId());
+                } else {
+                    users.add(order.getUserId());
+                }
+            }
+            List<Boolean> bought = seckillStockClient.isBought(voucherId, users);
+            for (int i = 0; i < users.size(); i++) {
+                if (!bought.get(i)) {
+                    missingUsers.add(users.get(i));
+                }
+            }
+            if (!cancelled.isEmpty()) {
+                settledOrders.addAll(seckillStockClient.delayedOrders(cancelled));
+            }
+        });
+        //3.分批遍历redis中的已下单用户，每批到数据库查一次
+        //  redis中有、数据库中没有：订单被拒绝或进了死信队列，用户占着名额
+        List<Long> extraUsers = new ArrayList<>();
+        List<Long> batch = new ArrayList<>(PREHEAT_PAGE_SIZE);
+        seckillStockClient.scanBoughtUsers(voucherId, userId -> {
+            batch.add(userId);
+            if (batch.size() == PREHEAT_PAGE_SIZE) {
+                extraUsers.addAll(usersWithoutOrder(seckillVoucher, batch));
+                batch.clear();
+            }
+        });
+        if (!batch.isEmpty()) {
+            extraUsers.addAll(usersWithoutOrder(seckillVoucher, batch));
+        }
+        report.put("dbStock", dbStock);
+        report.put("redisStock", redisStock);
+        report.put("stockDelta", dbStock - redisStock);
+        report.put("extraUsers", extraUsers.size());
+        report.put("extraUserSample", extraUsers.subList(0, Math.min(extraUsers.size(), REPORT_SAMPLE_SIZE)));
+        report.put("missingUsers", missingUsers.size());
+        report.put("missingUserSample", missingUsers.stream().limit(REPORT_SAMPLE_SIZE).collect(Collectors.toList()));
+        report.put("settledOrders", settledOrders.size());
+        report.put("ordersInFlight", !drained);
+        if (dbStock == redisStock && extraUsers.isEmpty() && missingUsers.isEmpty() && settledOrders.isEmpty()) {
+            report.put("action", "CONSISTENT");
+            return report;
+        }
+        log.warn("秒杀券{}对账不一致：{}", voucherId, report);
+        if (dryRun) {
+            report.put("action", "DRY_RUN");
+            return report;
+        }
+        //4.还有订单没有落库，数据库落后于redis，不能修正
+        if (!drained) {
+            report.put("action", "SKIPPED_IN_FLIGHT");
+            return report;
+        }
+        //5.修正库存，即使库存一致也执行一次CAS，确认对账期间没有新的秒杀，才能安全地移除用户
+        //  同一次脚本调用把已取消、库存已计入数据库库存的订单移出延时队列，取消任务重试时不会再归还一次
+        long corrected = seckillStockClient.correctStock(voucherId, redisStock, dbStock, settledOrders);
+        if (corrected != 1) {
+            report.put("action", corrected == 0 ? "SKIPPED_CONCURRENT_CHANGE" : "SKIPPED_NOT_LOADED");
+            return report;
+        }
+        //6.修正已下单用户
+        seckillStockClient.removeBoughtUsers(voucherId, extraUsers);
+        seckillStockClient.addBoughtUsers(voucherId, missingUsers);
+        seckillSoldOutRegistry.clear(voucherId);
+        report.put("action", "APPLIED");
+        log.info("秒杀券{}对账修正完成：库存 {} -> {}，移除用户{}个，补充用户{}个",
+                voucherId, redisStock, dbStock, extraUsers.size(), missingUsers.size());
+        return report;
+    }
+
+    /**
+     * 分页读取秒杀券未取消订单的用户
+     */
+    private void scanBoughtUsers(SeckillVoucher seckillVoucher, Consumer<List<Long>> consumer) {
+        scanOrders(seckillVoucher, false, orders ->
+                consumer.accept(orders.stream().map(VoucherOrder::getUserId).collect(Collectors.toList())));
+    }
+
+    /**
+     * 查出一批用户中在数据库里没有未取消订单的用户
+     */
+    private List<Long> usersWithoutOrder(SeckillVoucher seckillVoucher, List<Long> userIds) {
+        Set<Long> found = new HashSet<>();
+        for (String partition : voucherOrderPartitions.partitionsBetween(seckillVoucher.getBeginTime(), seckillVoucher.getEndTime())) {
+            voucherOrderPartitions.runIn(partition, () -> voucherOrderMapper.selectList(new QueryWrapper<VoucherOrder>()
+                            .select("user_id")
+                            .eq("voucher_id", seckillVoucher.getVoucherId())
+                            .ne("status", 4)
+                            .in("user_id", userIds))
+                    .forEach(order -> found.add(order.getUserId())));
+        }
+        return userIds.stream().filter(userId -> !found.contains(userId)).collect(Collectors.toList());
+    }
+
+    /**
+     * 分页读取秒杀券的订单
+     * 订单按id中的时间分表，只读取秒杀时间覆盖到的分表
+     * @param withCancelled 是否包含已取消的订单
+     */
+    private void scanOrders(SeckillVoucher seckillVoucher, boolean withCancelled, Consumer<List<VoucherOrder>> consumer) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        for (String partition : voucherOrderPartitions.partitionsBetween(seckillVoucher.getBeginTime(), seckillVoucher.getEndTime())) {
+            voucherOrderPartitions.runIn(partition, () -> {
+                long lastOrderId = 0;
+                while (true) {
+                    List<VoucherOrder> orders = voucherOrderMapper.selectList(new QueryWrapper<VoucherOrder>()
+                            .select("id", "user_id", "status")
+                            .eq("voucher_id", voucherId)
+                            .ne(!withCancelled, "status", 4)
+                            .gt("id", lastOrderId)
+                            .orderByAsc("id")
+                            .last("LIMIT " + PREHEAT_PAGE_SIZE));
+                    consumer.accept(orders);
+                    if (orders.size() < PREHEAT_PAGE_SIZE) {
+                        return;
+                    }
+                    lastOrderId = orders.get(orders.size() - 1).getId();
+                }
+            });
+        }
+    }
+
+    private void preheat(SeckillVoucher seckillVoucher, boolean force) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        //1.秒杀券信息
+        Voucher voucher = voucherMapper.selectById(voucherId);
+        seckillStockClient.saveVoucherInfo(seckillVoucher, voucher == null ? null : voucher.getStatus());
+        //2.已下单用户，先写用户再写库存，库存可见时一人一单的数据已经完整
+        scanBoughtUsers(seckillVoucher, userIds -> seckillStockClient.addBoughtUsers(voucherId, userIds));
+        //3.库存，redis中已有库存时数据库可能落后于redis（订单还在队列中），只有强制预热才覆盖
+        //  是否已有库存在脚本里判断，并发预热时只有一个节点写入
+        if (seckillStockClient.initStock(voucherId, seckillVoucher.getStock(), force)) {
+            seckillSoldOutRegistry.clear(voucherId);
+        }
+        log.debug("秒杀券{}预热完成", voucherId);
+    }
 }
@@ -9,6 +9,7 @@ import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.BloomFilterGuard;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisData;
@@ -40,6 +41,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;//解决缓存穿透，缓存击穿工具类
 
+    @Resource
+    private BloomFilterGuard bloomFilterGuard;
+
     /**
      * 根据id查询商铺
      * @param id
@@ -143,62 +147,18 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
     /**
      * 互斥锁解决缓存击穿
+     * 并发未命中时本节点只有一个线程查询数据库，其他线程等待它的结果，不再休眠重试
      * @param id
      * @return
      */
     public Shop queryWithMutex(Long id){
-        //1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(RedisConstants.CACHE_SHOP_KEY + id);
-        //2.判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            //3.存在，直接返回
-            return JSONUtil.toBean(shopJson, Shop.class);
-        }
-        //判断命中的是否是空值
-        if (shopJson != null) {
-            //返回一个错误信息
-            return null;
-        }
-
-        //实现缓存重建
-        //获取互斥锁
-        Shop shop = null;
-        try {
-            boolean isLock = tryLock(RedisConstants.LOCK_SHOP_KEY + id);
-            //判断是否获取成功
-            if (!isLock) {
-                //如果失败，则休眠并重试
-               Thread.sleep(50);
-               return queryWithMutex(id);
-            }
-
-            //4.成功，根据id查询数据库
-            //判断缓存是否存在，如果这个进程没有拿到互斥锁，可能别的进程拿到互斥锁直接存取redis，因此需要再判断有没有缓存
-            String json = stringRedisTemplate.opsForValue().get(RedisConstants.CACHE_SHOP_KEY + id);
-            if (StrUtil.isNotBlank(json)) {
-                //存在无需查询数据库写入redis
-                return JSONUtil.toBean(json, Shop.class);
-            }
-
-            shop = getById(id);
-            //5.不存在，返回错误
-            if (shop==null) {
-                //将空值写入redis
-                stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY+id,"",RedisConstants.CACHE_NULL_TTL,TimeUnit.MINUTES);
-                return null;
-            }
-
-            //6.存在，写入redis
-            stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY+id,JSONUtil.toJsonStr(shop),RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }finally {
-            //释放互斥锁
-            unLock(RedisConstants.LOCK_SHOP_KEY + id);
-        }
-
-        //7.返回
-        return shop;
+        return cacheClient.queryWithMutex(
+                RedisConstants.CACHE_SHOP_KEY,
+                id,
+                Shop.class,
+                this::getById,
+                RedisConstants.CACHE_SHOP_TTL,
+                TimeUnit.MINUTES);
     }
 
     /**
@@ -263,12 +223,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         //1.查询店铺数据
         Shop shop = getById(id);
         Thread.sleep(200);
-        //2.封装逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        //3.写入redis
-        stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY+id,JSONUtil.toJsonStr(redisData));
+        //2.封装逻辑过期时间，写入redis，同时让所有节点的一级缓存失效
+        cacheClient.setWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY+id,shop,expireSeconds,TimeUnit.SECONDS);
     }
 
     /**
@@ -285,8 +241,22 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         //更新数据库
         updateById(shop);
-        //删除缓存
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY+id);
+        //删除缓存，通知所有节点删除一级缓存
+        cacheClient.delete(RedisConstants.CACHE_SHOP_KEY+id);
         return Result.ok();
     }
+
+    /**
+     * 新增商铺，同时加入布隆过滤器
+     * @param shop
+     * @return
+     */
+    @Override
+    public boolean save(Shop shop) {
+        boolean saved = super.save(shop);
+        if (saved) {
+            bloomFilterGuard.add(RedisConstants.CACHE_SHOP_KEY, shop.getId());
+        }
+        return saved;
+    }
 }
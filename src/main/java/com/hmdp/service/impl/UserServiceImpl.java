@@ -12,6 +12,8 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BloomFilterGuard;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RegexUtils;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -20,6 +22,7 @@ import org.springframework.stereotype.Service;
 import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
 
+import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -41,6 +44,10 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private BloomFilterGuard bloomFilterGuard;
+    @Resource
+    private CacheClient cacheClient;
 
     /**
      * 发送手机验证码
@@ -131,4 +138,47 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         save(user);
         return user;
     }
+
+    /**
+     * 新增用户，同时加入布隆过滤器，删除这个id之前缓存的空值
+     * @param user
+     * @return
+     */
+    @Override
+    public boolean save(User user) {
+        boolean saved = super.save(user);
+        if (saved) {
+            bloomFilterGuard.add(CACHE_USER_KEY, user.getId());
+            cacheClient.delete(CACHE_USER_KEY + user.getId());
+        }
+        return saved;
+    }
+
+    /**
+     * 更新用户，删除缓存，通知所有节点删除一级缓存
+     * @param user
+     * @return
+     */
+    @Override
+    public boolean updateById(User user) {
+        boolean updated = super.updateById(user);
+        if (updated) {
+            cacheClient.delete(CACHE_USER_KEY + user.getId());
+        }
+        return updated;
+    }
+
+    /**
+     * 删除用户，同时删除缓存
+     * @param id
+     * @return
+     */
+    @Override
+    public boolean removeById(Serializable id) {
+        boolean removed = super.removeById(id);
+        if (removed) {
+            cacheClient.delete(CACHE_USER_KEY + id);
+        }
+        return removed;
+    }
 }
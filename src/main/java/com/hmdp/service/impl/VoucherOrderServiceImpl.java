@@ -1,5 +1,8 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.net.NetUtil;
+import com.hmdp.dto.OrderStatus;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
@@ -7,27 +10,64 @@ import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.OrderBatchMetrics;
+import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.RingBuffer;
+import com.hmdp.utils.SeckillScriptExecutor;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockClient;
+import com.hmdp.utils.SeckillStockLeases;
+import com.hmdp.utils.SeckillWaitingRoom;
 import com.hmdp.utils.SimpleRedisLock;
 import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.VoucherOrderPartitions;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.event.EventListener;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.context.request.async.DeferredResult;
 
-import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -48,109 +88,692 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     @Resource
+    private OrderBatchMetrics orderBatchMetrics;
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+    @Resource
+    private SeckillScriptExecutor seckillScriptExecutor;
+    @Resource
+    private SeckillStockClient seckillStockClient;
+    @Resource
+    private VoucherOrderPartitions voucherOrderPartitions;
+    @Resource
+    private SeckillStockLeases seckillStockLeases;
+    @Resource
     private RedissonClient redissonClient;
+    @Resource
+    private SeckillWaitingRoom seckillWaitingRoom;
+    @Value("${server.port}")
+    private String serverPort;
+    @Value("${hmdp.seckill.order.batch-enabled:false}")
+    private boolean batchEnabled;
+    @Value("${hmdp.seckill.order.batch-size:100}")
+    private int batchSize;
+    @Value("${hmdp.seckill.order.linger-ms:50}")
+    private long lingerMs;
+    @Value("${hmdp.seckill.order.partitions:4}")
+    private int partitions;
+    @Value("${hmdp.seckill.order.partition-capacity:10000}")
+    private int partitionCapacity;
+    @Value("${hmdp.seckill.order.shutdown-timeout-seconds:30}")
+    private long shutdownTimeoutSeconds;
+    //读取线程和分区线程之间环形队列的等待策略
+    @Value("${hmdp.seckill.order.wait-strategy:BLOCKING}")
+    private RingBuffer.WaitStrategy waitStrategy;
+    //每次从延时队列领取的到期订单数
+    @Value("${hmdp.seckill.order.cancel-batch-size:500}")
+    private int cancelBatchSize;
 
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    //消息队列的消费者名称，同一节点重启后名称不变，才能取回自己pending-list中未确认的消息
+    private String consumerName;
+    //同一条消息投递超过该次数仍处理失败，视为毒消息，转入死信队列
+    private static final int MAX_DELIVERY_COUNT = 3;
+    //其他消费者读取后超过该时间仍未确认的消息，认为该消费者已经下线
+    private static final Duration ORPHAN_IDLE_TIME = Duration.ofMinutes(5);
+    //领取到期订单后的租约，超过该时间没有处理完会被重新领取
+    private static final long CANCEL_LEASE_MS = 60_000;
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> DELAY_CLAIM_SCRIPT;
     static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
+        DELAY_CLAIM_SCRIPT = new DefaultRedisScript<>();
+        DELAY_CLAIM_SCRIPT.setLocation(new ClassPathResource("order-delay-claim.lua"));
+        DELAY_CLAIM_SCRIPT.setResultType(List.class);
+    }
+    //按userId分区的本地队列，同一个用户的订单总是由同一个线程按顺序处理
+    private List<RingBuffer<MapRecord<String, Object, Object>>> partitionQueues;
+    //线程池：1个读取线程 + 每个分区1个处理线程
+    private ExecutorService seckillOrderExecutor;
+    //running为false后读取线程停止拉取新消息；读取线程退出后分区线程处理完本地队列再退出
+    private volatile boolean running = true;
+    private volatile boolean readerDone = false;
+
+    @EventListener(ApplicationReadyEvent.class)//容器启动完成后再开始消费，保证代理对象已经可用
+    public void init(){
+        consumerName = NetUtil.getLocalHostName() + ":" + serverPort;
+        //创建消费者组，stream不存在时会自动创建（MKSTREAM）
+        createOrderGroupIfAbsent();
+        partitionQueues = new ArrayList<>(partitions);
+        seckillOrderExecutor = Executors.newFixedThreadPool(partitions + 1);
+        for (int i = 0; i < partitions; i++) {
+            RingBuffer<MapRecord<String, Object, Object>> queue = new RingBuffer<>(partitionCapacity, waitStrategy);
+            partitionQueues.add(queue);
+            orderBatchMetrics.registerPartition(i, queue::size);
+            seckillOrderExecutor.submit(new PartitionHandler(i, queue));
+        }
+        seckillOrderExecutor.submit(new VoucherOrderHandler());
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        //1.停止拉取新消息
+        running = false;
+        if (seckillOrderExecutor == null) {
+            return;
+        }
+        //2.等待分区线程把已经拉取到本地队列的订单处理完
+        seckillOrderExecutor.shutdown();
+        if (!seckillOrderExecutor.awaitTermination(shutdownTimeoutSeconds, TimeUnit.SECONDS)) {
+            //3.超时仍未处理完的消息没有ACK，留在pending-list中，下次启动时重新处理
+            log.warn("关闭时订单队列未处理完，剩余消息将在下次启动时重新处理");
+            seckillOrderExecutor.shutdownNow();
+        }
     }
 
-    //阻塞队列，当队列里有元素时，取出元素，没有则阻塞
-    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024*1024);
-    //创建线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    private void createOrderGroupIfAbsent() {
+        try {
+            stringRedisTemplate.opsForStream().createGroup(
+                    RedisConstants.SECKILL_ORDER_STREAM, ReadOffset.from("0"), RedisConstants.SECKILL_ORDER_GROUP);
+        } catch (Exception e) {
+            //BUSYGROUP，消费者组已经存在
+            log.debug("消费者组已存在：{}", e.getMessage());
+        }
+    }
 
-    @PostConstruct//在当前类初始化之后运行
-    private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+    private int partitionOf(Long userId) {
+        return Math.floorMod(Long.hashCode(userId), partitions);
     }
 
-    //创建线程任务
+    //读取线程：从stream拉取消息，按userId分发到各分区队列
     private class VoucherOrderHandler implements Runnable{
 
         @Override
         public void run() {
-            while (true){
+            try {
+                //启动时先接管已经下线的节点遗留的消息，再处理上次宕机前已读取但未确认的消息
+                claimOrphanedPending();
+                handlePendingList();
+                readLoop();
+            } finally {
+                readerDone = true;
+            }
+        }
+
+        private void readLoop() {
+            while (running){
+                try {
+                    //1.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT n BLOCK 2000 STREAMS stream.orders >
+                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                            Consumer.from(RedisConstants.SECKILL_ORDER_GROUP, consumerName),
+                            StreamReadOptions.empty().count(batchEnabled ? batchSize : 1).block(Duration.ofSeconds(2)),
+                            StreamOffset.create(RedisConstants.SECKILL_ORDER_STREAM, ReadOffset.lastConsumed())
+                    );
+                    //2.判断消息获取是否成功
+                    if (list == null || list.isEmpty()) {
+                        //2.1.如果获取失败，说明没有消息，继续下一次循环
+                        continue;
+                    }
+                    //3.按userId分发，分区队列满时阻塞，消息留在stream中不会丢
+                    for (MapRecord<String, Object, Object> record : list) {
+                        Long userId = Long.valueOf(record.getValue().get("userId").toString());
+                        partitionQueues.get(partitionOf(userId)).put(record);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    log.error("读取订单消息异常",e);
+                }
+            }
+        }
+
+        /**
+         * 把其他消费者读取后长时间没有确认的消息转给自己，避免节点下线后它的消息永远留在pending-list中
+         */
+        private void claimOrphanedPending() {
+            try {
+                PendingMessages pending = stringRedisTemplate.opsForStream().pending(
+                        RedisConstants.SECKILL_ORDER_STREAM, RedisConstants.SECKILL_ORDER_GROUP, Range.unbounded(), 1000L);
+                RecordId[] orphaned = pending.stream()
+                        .filter(m -> !consumerName.equals(m.getConsumerName()))
+                        .filter(m -> m.getElapsedTimeSinceLastDelivery().compareTo(ORPHAN_IDLE_TIME) > 0)
+                        .map(PendingMessage::getId)
+                        .toArray(RecordId[]::new);
+                if (orphaned.length == 0) {
+                    return;
+                }
+                //XCLAIM stream.orders g1 c1 min-idle-time id...
+                List<RecordId> claimed = stringRedisTemplate.execute((RedisCallback<List<RecordId>>) connection ->
+                        connection.streamCommands().xClaimJustId(
+                                RedisConstants.SECKILL_ORDER_STREAM.getBytes(StandardCharsets.UTF_8),
+                                RedisConstants.SECKILL_ORDER_GROUP, consumerName,
+                                RedisStreamCommands.XClaimOptions.minIdle(ORPHAN_IDLE_TIME).ids(orphaned)));
+                log.info("接管其他节点遗留的订单消息{}条", claimed == null ? 0 : claimed.size());
+            } catch (Exception e) {
+                log.error("接管遗留订单消息异常", e);
+            }
+        }
+
+        private void handlePendingList() {
+            while (running){
                 try {
-                    //获取队列中的订单信息
-                    VoucherOrder voucherOrder = orderTasks.take();
-                    //创建订单
-                    handleVoucherOrder(voucherOrder);
+                    //1.获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 STREAMS stream.orders 0
+                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                            Consumer.from(RedisConstants.SECKILL_ORDER_GROUP, consumerName),
+                            StreamReadOptions.empty().count(1),
+                            StreamOffset.create(RedisConstants.SECKILL_ORDER_STREAM, ReadOffset.from("0"))
+                    );
+                    //2.判断消息获取是否成功
+                    if (list == null || list.isEmpty()) {
+                        //2.1.如果获取失败，说明pending-list没有异常消息，结束循环
+                        break;
+                    }
+                    MapRecord<String, Object, Object> record = list.get(0);
+                    //3.投递次数过多的毒消息转入死信队列，不再阻塞后面的消息
+                    if (deliveryCount(record.getId()) > MAX_DELIVERY_COUNT) {
+                        moveToDeadLetter(record);
+                        continue;
+                    }
+                    //4.解析消息中的订单信息，创建订单，ACK确认
+                    handleVoucherOrder(record);
                 } catch (Exception e) {
-                    log.error("处理订单异常",e);
+                    log.error("处理pending订单异常",e);
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
                 }
             }
         }
     }
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        //获取用户
-        Long userId = voucherOrder.getUserId();
-        //创建锁对象,分布式锁
-        //*SimpleRedisLock lock = new SimpleRedisLock("order:" + userId, stringRedisTemplate);*//*
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        //获取锁
-        boolean isLock = lock.tryLock();
-        //判断是否获取锁成功
-        if(!isLock){
-            //获取锁失败,返回错误或重试
-            log.error("不允许重复下单");
+    //分区处理线程：从自己的队列凑批落库
+    private class PartitionHandler implements Runnable {
+
+        private final int partition;
+        private final RingBuffer<MapRecord<String, Object, Object>> queue;
+
+        PartitionHandler(int partition, RingBuffer<MapRecord<String, Object, Object>> queue) {
+            this.partition = partition;
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            //读取线程退出后，把本地队列中剩余的订单处理完再退出
+            while (!readerDone || !queue.isEmpty()) {
+                try {
+                    List<MapRecord<String, Object, Object>> batch = drainBatch();
+                    if (batch.isEmpty()) {
+                        continue;
+                    }
+                    handleVoucherOrders(batch);
+                    //消息写入stream到落库完成的延迟
+                    long enqueueMillis = batch.get(batch.size() - 1).getId().getTimestamp();
+                    orderBatchMetrics.recordLag(partition, System.currentTimeMillis() - enqueueMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    log.error("分区{}处理订单异常", partition, e);
+                }
+            }
+        }
+
+        private List<MapRecord<String, Object, Object>> drainBatch() throws InterruptedException {
+            MapRecord<String, Object, Object> first = queue.poll(2, TimeUnit.SECONDS);
+            if (first == null) {
+                return Collections.emptyList();
+            }
+            List<MapRecord<String, Object, Object>> batch = new ArrayList<>();
+            batch.add(first);
+            if (!batchEnabled) {
+                return batch;
+            }
+            //已经拿到消息，在linger时间内继续凑批
+            long deadline = System.currentTimeMillis() + lingerMs;
+            while (batch.size() < batchSize) {
+                queue.drainTo(batch, batchSize - batch.size());
+                long remaining = deadline - System.currentTimeMillis();
+                if (batch.size() >= batchSize || remaining <= 0) {
+                    break;
+                }
+                MapRecord<String, Object, Object> next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+                if (next == null) {
+                    break;
+                }
+                batch.add(next);
+            }
+            return batch;
+        }
+
+        private void handleVoucherOrders(List<MapRecord<String, Object, Object>> records) {
+            if (records.size() > 1) {
+                long begin = System.currentTimeMillis();
+                try {
+                    //一个事务内批量扣库存、批量写订单
+                    List<VoucherOrder> orders = records.stream().map(VoucherOrderServiceImpl.this::toVoucherOrder).collect(Collectors.toList());
+                    voucherOrderPartitions.ensureTablesFor(orders.stream().map(VoucherOrder::getId).collect(Collectors.toList()));
+                    Map<Long, String> failures = proxy.createVoucherOrders(orders);
+                    //先写订单状态再ACK，ACK之后进程退出也不会让状态停在PENDING
+                    updateOrderStatus(orders, failures);
+                    stringRedisTemplate.opsForStream().acknowledge(
+                            RedisConstants.SECKILL_ORDER_STREAM, RedisConstants.SECKILL_ORDER_GROUP,
+                            records.stream().map(MapRecord::getId).toArray(RecordId[]::new));
+                    orderBatchMetrics.recordBatch(records.size(), System.currentTimeMillis() - begin);
+                    return;
+                } catch (Exception e) {
+                    //整批已回滚，退回逐条处理，把出问题的那条消息隔离出来
+                    log.warn("批量创建订单失败，改为逐条处理：{}", e.getMessage());
+                    orderBatchMetrics.recordFallback();
+                }
+            }
+            for (MapRecord<String, Object, Object> record : records) {
+                handleWithRetry(record);
+            }
+        }
+
+        //分区内按顺序处理，失败的消息在本线程重试，超过次数转入死信队列
+        private void handleWithRetry(MapRecord<String, Object, Object> record) {
+            for (int attempt = 1; !Thread.currentThread().isInterrupted(); attempt++) {
+                try {
+                    handleVoucherOrder(record);
+                    return;
+                } catch (Exception e) {
+                    log.error("处理订单异常，第{}次：{}", attempt, record.getId(), e);
+                    if (attempt >= MAX_DELIVERY_COUNT) {
+                        moveToDeadLetter(record);
+                        return;
+                    }
+                    try {
+                        Thread.sleep(200L * attempt);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private VoucherOrder toVoucherOrder(MapRecord<String, Object, Object> record) {
+        Map<Object, Object> value = record.getValue();
+        return BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
+    }
+
+    /**
+     * 查询消息被投递的次数
+     */
+    private long deliveryCount(RecordId recordId) {
+        PendingMessages pending = stringRedisTemplate.opsForStream().pending(
+                RedisConstants.SECKILL_ORDER_STREAM,
+                Consumer.from(RedisConstants.SECKILL_ORDER_GROUP, consumerName),
+                Range.closed(recordId.getValue(), recordId.getValue()),
+                1L);
+        return pending.isEmpty() ? 0 : pending.get(0).getTotalDeliveryCount();
+    }
+
+    /**
+     * 把无法处理的消息写入死信队列并确认，原消息的字段原样保留，方便人工排查后重新投递
+     */
+    private void moveToDeadLetter(MapRecord<String, Object, Object> record) {
+        Map<Object, Object> value = new HashMap<>(record.getValue());
+        value.put("sourceId", record.getId().getValue());
+        value.put("consumer", consumerName);
+        stringRedisTemplate.opsForStream().add(RedisConstants.SECKILL_ORDER_DLQ_STREAM, value);
+        VoucherOrder voucherOrder = toVoucherOrder(record);
+        updateOrderStatus(Collections.singletonList(voucherOrder), Collections.singletonMap(voucherOrder.getId(), "订单处理失败"));
+        stringRedisTemplate.opsForStream().acknowledge(
+                RedisConstants.SECKILL_ORDER_STREAM, RedisConstants.SECKILL_ORDER_GROUP, record.getId());
+        log.error("订单消息多次处理失败，已转入死信队列：{}", value);
+    }
+
+    private void handleVoucherOrder(MapRecord<String, Object, Object> record) {
+        //同一个用户的订单只会进入同一个分区，由一个线程串行处理，不再需要lock:order:userId分布式锁
+        //跨节点的重复下单已经由seckill.lua的一人一单校验拦截
+        VoucherOrder voucherOrder = toVoucherOrder(record);
+        voucherOrderPartitions.ensureTablesFor(Collections.singletonList(voucherOrder.getId()));
+        Result result = proxy.createVoucherOrder(voucherOrder);
+        //事务已提交，先写订单状态，再ACK确认 SACK stream.orders g1 id
+        updateOrderStatus(Collections.singletonList(voucherOrder),
+                Collections.singletonMap(voucherOrder.getId(), result.getSuccess() ? null : result.getErrorMsg()));
+        stringRedisTemplate.opsForStream().acknowledge(
+                RedisConstants.SECKILL_ORDER_STREAM, RedisConstants.SECKILL_ORDER_GROUP, record.getId());
+    }
+
+    /**
+     * 更新订单状态记录，客户端通过 /voucher-order/status/{orderId} 轮询
+     * 状态记录可能已经过期，每次都写入完整的记录，不会只剩下status字段而查不到所属用户
+     * @param failures 订单id -> 失败原因，成功的订单不在其中
+     */
+    private void updateOrderStatus(Collection<VoucherOrder> orders, Map<Long, String> failures) {
+        stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object execute(RedisOperations operations) {
+                for (VoucherOrder order : orders) {
+                    String key = RedisConstants.SECKILL_ORDER_STATUS_KEY + order.getId();
+                    String reason = failures.get(order.getId());
+                    Map<String, String> status = new HashMap<>();
+                    status.put("status", reason == null ? OrderStatus.CREATED.name() : OrderStatus.FAILED.name());
+                    status.put("userId", order.getUserId().toString());
+                    status.put("voucherId", order.getVoucherId().toString());
+                    if (reason != null) {
+                        status.put("reason", reason);
+                    }
+                    operations.opsForHash().putAll(key, status);
+                    operations.expire(key, RedisConstants.SECKILL_ORDER_STATUS_TTL, TimeUnit.SECONDS);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 每秒扫描一次延时队列，取消到期仍未支付的订单
+     * 延时队列按支付截止时间排序，每次只取出已经到期的一批，不扫描数据库，队列中有大量未到期订单也不影响
+     */
+    @Scheduled(fixedDelay = 1000)
+    public void cancelExpiredOrders() {
+        //取消订单时拿读锁，各节点可以同时取消，领取延时队列和归还库存的脚本保证同一个订单只处理一次；
+        //库存对账拿写锁，对账期间不会有订单在数据库已取消、redis还没归还库存
+        //不指定持有时间，由redisson看门狗续期，处理时间再长也不会中途失效
+        RLock lock = redissonClient.getReadWriteLock(RedisConstants.SECKILL_STOCK_SYNC_LOCK).readLock();
+        if (!lock.tryLock()) {
             return;
         }
-        //获得当前类对象的代理对象，注意启动类需要配置暴露动态代理对象
         try {
-            proxy.createVoucherOrder(voucherOrder);
+            cancelExpiredOrderBatches();
         } finally {
-            //释放锁
             lock.unlock();
         }
     }
 
+    private void cancelExpiredOrderBatches() {
+        while (true) {
+            List<?> claimed = stringRedisTemplate.execute(DELAY_CLAIM_SCRIPT,
+                    Collections.singletonList(RedisConstants.SECKILL_ORDER_DELAY_KEY),
+                    String.valueOf(cancelBatchSize), String.valueOf(CANCEL_LEASE_MS));
+            if (claimed == null || claimed.isEmpty()) {
+                return;
+            }
+            List<Long> orderIds = claimed.stream().map(id -> Long.valueOf(id.toString())).collect(Collectors.toList());
+            try {
+                //1.数据库中取消仍未支付的订单、归还数据库库存
+                proxy.cancelUnpaidOrders(orderIds);
+                //2.以数据库中的订单状态为准处理，不依赖会过期的订单状态记录
+                //  上一次取消后归还redis库存失败的订单，这次查到的状态也是已取消，会再归还一次
+                Map<Long, VoucherOrder> orders = queryOrders(orderIds);
+                List<VoucherOrder> cancelled = orders.values().stream()
+                        .filter(order -> order.getStatus() == 4).collect(Collectors.toList());
+                //2.1.已取消的订单归还redis中的库存并移出延时队列，已经归还过的不再归还
+                long returned = seckillStockClient.giveBack(cancelled);
+                cancelled.stream().collect(Collectors.groupingBy(VoucherOrder::getVoucherId,
+                                Collectors.mapping(VoucherOrder::getUserId, Collectors.toList())))
+                        .forEach(seckillSoldOutRegistry::release);
+                //2.2.已支付等其他状态的订单移出延时队列
+                //2.3.数据库中还没有的订单，消息队列已经消费完说明订单创建失败，移出延时队列；
+                //    否则订单还在消息队列中等待创建，留在延时队列中，租约到期后再检查
+                boolean drained = seckillStockClient.isOrderStreamDrained();
+                List<Long> done = orderIds.stream()
+                        .filter(id -> orders.containsKey(id) ? orders.get(id).getStatus() != 4 : drained)
+                        .collect(Collectors.toList());
+                if (!done.isEmpty()) {
+                    stringRedisTemplate.opsForZSet().remove(RedisConstants.SECKILL_ORDER_DELAY_KEY,
+                            done.stream().map(String::valueOf).toArray());
+                }
+                if (returned > 0) {
+                    log.info("取消超时未支付订单{}个", returned);
+                }
+            } catch (Exception e) {
+                //不移出延时队列，租约到期后重新领取
+                log.error("取消超时订单失败，共{}个", orderIds.size(), e);
+                return;
+            }
+            if (claimed.size() < cancelBatchSize) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 按订单id到各分表查询订单的状态
+     * @return 订单id -> 订单，数据库中没有的订单不在其中
+     */
+    private Map<Long, VoucherOrder> queryOrders(List<Long> orderIds) {
+        Map<Long, VoucherOrder> orders = new HashMap<>();
+        voucherOrderPartitions.groupByPartition(orderIds, Long::longValue).forEach((partition, ids) ->
+                voucherOrderPartitions.callIn(partition, () -> query()
+                        .select("id", "user_id", "voucher_id", "status")
+                        .in("id", ids).list())
+                        .forEach(order -> orders.put(order.getId(), order)));
+        return orders;
+    }
+
+    /**
+     * 取消仍未支付的订单，并把库存还给秒杀券
+     * @param orderIds 到期的订单id
+     * @return 实际取消的订单
+     */
+    @Override
+    @Transactional
+    public List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds) {
+        List<VoucherOrder> orders = new ArrayList<>();
+        voucherOrderPartitions.groupByPartition(orderIds, Long::longValue).forEach((partition, ids) ->
+                voucherOrderPartitions.runIn(partition, () -> {
+                    //1.锁住仍未支付的订单，避免与支付并发
+                    List<VoucherOrder> unpaid = query().select("id", "user_id", "voucher_id")
+                            .in("id", ids).eq("status", 1).last("for update").list();
+                    if (unpaid.isEmpty()) {
+                        return;
+                    }
+                    //2.修改订单状态为已取消
+                    update().set("status", 4)
+                            .in("id", unpaid.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                            .eq("status", 1).update();
+                    orders.addAll(unpaid);
+                }));
+        if (orders.isEmpty()) {
+            return orders;
+        }
+        //3.按优惠券归还库存，每个优惠券一条update
+        Map<Long, Long> counts = orders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        counts.forEach((voucherId, k) -> seckillVoucherService.update()
+                .setSql("stock = stock + " + k)
+                .eq("voucher_id", voucherId)
+                .update());
+        return orders;
+    }
+
+    @Override
+    public List<VoucherOrder> queryOrdersByTime(Long userId, LocalDateTime begin, LocalDateTime end, Long lastId, int size) {
+        //[begin, end) 换算为主键范围，在聚簇索引上范围扫描；lastId为上一页最后一条的id
+        long minId = RedisIdWorker.minIdOf(begin);
+        if (lastId != null) {
+            minId = Math.max(minId, lastId + 1);
+        }
+        long startId = minId;
+        long endId = endIdOf(end);
+        //按月份依次查询覆盖到的分表，凑够一页为止
+        List<VoucherOrder> orders = new ArrayList<>();
+        for (String partition : voucherOrderPartitions.partitionsBetween(startId, endId)) {
+            int remaining = size - orders.size();
+            if (remaining <= 0) {
+                break;
+            }
+            orders.addAll(voucherOrderPartitions.callIn(partition, () -> query()
+                    .ge("id", startId)
+                    .lt("id", endId)
+                    .eq(userId != null, "user_id", userId)
+                    .orderByAsc("id")
+                    .last("LIMIT " + remaining)
+                    .list()));
+        }
+        return orders;
+    }
+
+    @Override
+    public int countOrdersByTime(Long userId, Long voucherId, LocalDateTime begin, LocalDateTime end) {
+        int count = 0;
+        long minId = RedisIdWorker.minIdOf(begin);
+        long endId = endIdOf(end);
+        for (String partition : voucherOrderPartitions.partitionsBetween(minId, endId)) {
+            count += voucherOrderPartitions.callIn(partition, () -> query()
+                    .ge("id", minId)
+                    .lt("id", endId)
+                    .eq(userId != null, "user_id", userId)
+                    .eq(voucherId != null, "voucher_id", voucherId)
+                    .count());
+        }
+        return count;
+    }
+
+    /**
+     * 结束时间对应的id上界（不包含），id只精确到秒，不足一秒的向上取整
+     */
+    private long endIdOf(LocalDateTime end) {
+        LocalDateTime second = end.withNano(0);
+        return RedisIdWorker.minIdOf(second.equals(end) ? end : second.plusSeconds(1));
+    }
+
+    @Override
+    public Result takeTicket(Long voucherId) {
+        return Result.ok(seckillWaitingRoom.takeTicket(voucherId, UserHolder.getUser().getId()));
+    }
+
+    @Override
+    public DeferredResult<Result> pollTicket(Long voucherId) {
+        return seckillWaitingRoom.poll(voucherId, UserHolder.getUser().getId());
+    }
+
+    @Override
+    public Result queryOrderStatus(Long orderId) {
+        //只查redis中的状态记录，秒杀期间轮询不会打到数据库
+        Map<Object, Object> status = stringRedisTemplate.opsForHash().entries(RedisConstants.SECKILL_ORDER_STATUS_KEY + orderId);
+        if (status.isEmpty()) {
+            return Result.fail("订单不存在或状态已过期");
+        }
+        //只能查询自己的订单
+        if (!UserHolder.getUser().getId().toString().equals(status.get("userId"))) {
+            return Result.fail("订单不存在或状态已过期");
+        }
+        Map<String, Object> result = new HashMap<>();
+        result.put("orderId", orderId.toString());
+        result.put("status", status.get("status"));
+        result.put("reason", status.get("reason"));
+        return Result.ok(result);
+    }
+
+    //注入自身的代理对象，消费线程中拿不到AopContext
+    @Resource
+    @Lazy
     private IVoucherOrderService proxy;
 
     /**
      * 创建秒杀订单
      *
      * @param voucherId
+     * @param ticket 排队凭证
      * @return
      */
-    //改进秒杀业务，提高并发性能，使用消息队列异步通信
-    public Result seckillVoucher(Long voucherId) {
+    //改进秒杀业务，提高并发性能，使用Redis Stream消息队列异步通信
+    public Result seckillVoucher(Long voucherId, String ticket) {
         //获取用户
         Long userId = UserHolder.getUser().getId();
-        //1.执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString()
-        );
+        //排队凭证缺失、伪造或者还没有放行，不访问redis
+        if (!seckillWaitingRoom.mayEnter(voucherId, userId, ticket)) {
+            return Result.fail("还没有轮到您，请继续排队");
+        }
+        //本地已知售罄或者本节点上已经抢到过，不必再访问redis
+        if (seckillSoldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        if (seckillSoldOutRegistry.hasBought(voucherId, userId)) {
+            return Result.fail("不能重复下单");
+        }
+        //开启库存租用时，先从本节点租用的库存中分配，本地没有库存时才去redis租用下一段
+        String leaseNode = "";
+        if (seckillStockLeases.isEnabled()) {
+            int acquired = seckillStockLeases.tryAcquire(voucherId);
+            if (acquired == SeckillStockLeases.SOLD_OUT) {
+                seckillSoldOutRegistry.markSoldOut(voucherId);
+                return Result.fail("库存不足");
+            }
+            if (acquired == SeckillStockLeases.NONE) {
+                //其他节点还有没卖完的租用库存，不标记售罄
+                return Result.fail("库存不足");
+            }
+            if (acquired == SeckillStockLeases.COLD) {
+                seckillVoucherService.preheatAsync(voucherId);
+                return Result.fail("活动火爆，请稍后重试");
+            }
+            leaseNode = seckillStockLeases.node();
+        }
+        //获取订单id
+        long orderId = redisIdWorker.nextId("order");
+        //1.执行lua脚本，一次redis调用内完成时间、库存、一人一单校验，有购买资格时把订单信息发送到stream.orders
+        //开启合并时，并发的请求会合并成一次脚本调用
+        int r = (int) seckillScriptExecutor.execute(voucherId, userId, orderId, leaseNode);
+        if (r == SeckillScriptExecutor.UNKNOWN) {
+            //等待结果超时或者批量调用出错，脚本可能已经扣减库存，不归还租约，返回订单id让客户端轮询订单状态
+            //脚本没有执行时订单状态不存在，状态查询会返回订单不存在
+            return Result.ok(String.valueOf(orderId));
+        }
+        if (!leaseNode.isEmpty() && r != 0) {
+            if (r == 7) {
+                //2.0.租约已经被回收，丢弃本地库存
+                seckillStockLeases.invalidate(voucherId);
+                return Result.fail("活动火爆，请稍后重试");
+            }
+            if (r == 9) {
+                //2.0.本地计数多于redis中的租用库存，清零后下次重新租用，其他节点还有租用库存，不标记售罄
+                seckillStockLeases.drain(voucherId);
+                return Result.fail("库存不足");
+            }
+            //没有卖出，库存放回本地租约
+            seckillStockLeases.release(voucherId);
+        }
 
         //2.判断结果是为0
-        int r = result.intValue();
+        if(r == 1){
+            //2.1.库存不足，本节点记住售罄并通知其他节点
+            seckillSoldOutRegistry.markSoldOut(voucherId);
+            return Result.fail("库存不足");
+        }
+        if(r == 6){
+            //2.2.redis中还没有这个秒杀券的数据，触发预热，让用户稍后重试
+            seckillVoucherService.preheatAsync(voucherId);
+            return Result.fail("活动火爆，请稍后重试");
+        }
+        if(r == 3 || r == 4 || r == 5){
+            //2.3.不在秒杀时间内或者优惠券不可用
+            return Result.fail(r == 3 ? "秒杀尚未开始" : r == 4 ? "秒杀已经结束" : "优惠券已下架");
+        }
+        if(r == 8){
+            //2.4.排队号还没有放行
+            return Result.fail("还没有轮到您，请继续排队");
+        }
+        //2.5.抢到或者重复下单，都记住这个用户
+        seckillSoldOutRegistry.markBought(voucherId, userId);
         if(r != 0){
-            //2.1.不为0，代表没有购买资格
-            return Result.fail(r==1?"库存不足":"不能重复下单");
+            return Result.fail("不能重复下单");
         }
 
-        //2.2.为0，有购买资格，把下单信息保存到阻塞队列中
-        VoucherOrder voucherOrder = new VoucherOrder();
-        //订单id
-        long orderId = redisIdWorker.nextId("order");
-        voucherOrder.setId(orderId);
-        //用户id
-        voucherOrder.setUserId(userId);
-        //代金券id
-        voucherOrder.setVoucherId(voucherId);
-        //创建阻塞队列
-        orderTasks.add(voucherOrder);
-
-        //提前获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-
-        //3.返回订单id
-        return Result.ok(0);
+        //3.返回订单id，订单异步创建，客户端用订单id轮询订单状态
+        //订单id超出了js的安全整数范围，以字符串返回
+        return Result.ok(String.valueOf(orderId));
     }
 
    /* @Override
@@ -245,17 +868,27 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         return Result.ok(orderId);
     }*/
 
+    @Override
     @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
+    public Result createVoucherOrder(VoucherOrder voucherOrder) {
         //一人一单
         //查询订单
         Long userId = voucherOrder.getUserId();
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
+        //查所有可能存放这张券订单的表，上个月或者开启分表之前下的单也要算
+        List<VoucherOrder> existed = new ArrayList<>();
+        for (String partition : partitionsOfVoucher(voucherOrder.getVoucherId(), Collections.singletonList(voucherOrder))) {
+            existed.addAll(voucherOrderPartitions.callIn(partition, () -> query().select("id")
+                    .eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).list()));
+        }
         //判断订单是否存在
-        if (count > 0) {
+        if (!existed.isEmpty()) {
+            if (existed.stream().anyMatch(o -> o.getId().equals(voucherOrder.getId()))) {
+                //同一条消息重复投递，订单已经创建过了
+                return Result.ok(voucherOrder.getId());
+            }
             //用户已经购买过了
             log.error("用户已经购买过一次！");
-            return;
+            return Result.fail("用户已经购买过一次");
         }
 
         //5.扣减库存
@@ -266,11 +899,87 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         if (!success) {
             //扣减失败
             log.error("库存不足！");
-            return;
+            return Result.fail("库存不足");
         }
 
         //创建订单
-        save(voucherOrder);
+        voucherOrderPartitions.runIn(voucherOrderPartitions.partitionOf(voucherOrder.getId()), () -> save(voucherOrder));
+        return Result.ok(voucherOrder.getId());
+    }
+
+    /**
+     * 可能存放这张券订单的表：原表、秒杀时间覆盖到的分表，以及这些订单自己所在的分表
+     * 秒杀券不存在或者秒杀时间被修改过时，至少也查原表和订单所在的分表
+     * @return 分表后缀，null表示原表
+     */
+    private Set<String> partitionsOfVoucher(Long voucherId, Collection<VoucherOrder> orders) {
+        Set<String> partitions = new LinkedHashSet<>();
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        if (seckillVoucher != null) {
+            partitions.addAll(voucherOrderPartitions.partitionsBetween(seckillVoucher.getBeginTime(), seckillVoucher.getEndTime()));
+        }
+        partitions.add(null);
+        for (VoucherOrder order : orders) {
+            partitions.add(voucherOrderPartitions.partitionOf(order.getId()));
+        }
+        return partitions;
+    }
+
+    /**
+     * 批量创建订单：一次查询做一人一单校验，每个优惠券只扣一次库存，所有订单一条insert写入
+     * 任何一个优惠券库存不足都会整批回滚，由调用方退回逐条处理
+     * @param voucherOrders 订单列表
+     * @return 没有创建的订单：订单id -> 原因
+     */
+    @Override
+    @Transactional
+    public Map<Long, String> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        Map<Long, String> failures = new HashMap<>();
+        //1.一人一单，先在批内去重（同一条消息可能被重复投递）
+        Map<String, VoucherOrder> orders = new LinkedHashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            VoucherOrder first = orders.putIfAbsent(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId(), voucherOrder);
+            if (first != null && !first.getId().equals(voucherOrder.getId())) {
+                failures.put(voucherOrder.getId(), "用户已经购买过一次");
+            }
+        }
+        //1.1.再查询出已经落库的订单，每张券查所有可能存放它的订单的表，上个月或者开启分表之前下的单也要算
+        List<VoucherOrder> existed = new ArrayList<>();
+        voucherOrders.stream().collect(Collectors.groupingBy(VoucherOrder::getVoucherId)).forEach((voucherId, group) -> {
+            Set<Long> userIds = group.stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+            for (String partition : partitionsOfVoucher(voucherId, group)) {
+                existed.addAll(voucherOrderPartitions.callIn(partition, () -> query().select("id", "user_id", "voucher_id")
+                        .in("user_id", userIds).eq("voucher_id", voucherId).list()));
+            }
+        });
+        for (VoucherOrder e : existed) {
+            VoucherOrder order = orders.remove(e.getUserId() + ":" + e.getVoucherId());
+            //同一个订单重复投递时已经创建过了，不算失败
+            if (order != null && !order.getId().equals(e.getId())) {
+                log.error("用户已经购买过一次！userId={}, voucherId={}", e.getUserId(), e.getVoucherId());
+                failures.put(order.getId(), "用户已经购买过一次");
+            }
+        }
+        if (orders.isEmpty()) {
+            return failures;
+        }
+
+        //2.按优惠券分组扣减库存 stock = stock - k where voucher_id = ? and stock >= k
+        Map<Long, Long> countByVoucher = orders.values().stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        countByVoucher.forEach((voucherId, k) -> {
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + k)
+                    .eq("voucher_id", voucherId).ge("stock", k)
+                    .update();
+            if (!success) {
+                throw new IllegalStateException("库存不足，voucherId=" + voucherId + "，本批需要" + k);
+            }
+        });
 
+        //3.多行insert写入订单，每个分表一条insert
+        voucherOrderPartitions.groupByPartition(orders.values(), VoucherOrder::getId).forEach((partition, group) ->
+                voucherOrderPartitions.runIn(partition, () -> getBaseMapper().insertBatch(group)));
+        return failures;
     }
 }
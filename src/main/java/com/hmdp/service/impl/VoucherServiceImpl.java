@@ -7,8 +7,8 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
-import com.hmdp.utils.RedisConstants;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockClient;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -29,7 +29,9 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private ISeckillVoucherService seckillVoucherService;
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private SeckillStockClient seckillStockClient;
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -51,7 +53,11 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
+        //保存秒杀券信息到Redis中，秒杀时在lua脚本里校验时间和状态
+        seckillStockClient.saveVoucherInfo(seckillVoucher, voucher.getStatus());
         //保存秒杀库存到Redis中
-        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY +voucher.getId(),voucher.getStock().toString());
+        seckillStockClient.initStock(voucher.getId(), voucher.getStock(), true);
+        //清除各节点本地的售罄标记
+        seckillSoldOutRegistry.clear(voucher.getId());
     }
 }
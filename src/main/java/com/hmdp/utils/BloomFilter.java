@@ -0,0 +1,72 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 数值id的布隆过滤器，可以并发添加和查询
+ * 位数和哈希函数个数按预计元素个数和误判率计算，两个64位哈希组合出k个位置
+ */
+public class BloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long bitSize;
+    private final int hashCount;
+
+    public BloomFilter(long expectedInsertions, double fpp) {
+        long n = Math.max(expectedInsertions, 1);
+        //m = -n * ln(p) / (ln2)^2，k = m / n * ln2
+        long m = (long) (-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.bits = new AtomicLongArray((int) Math.max(1, (m + 63) >>> 6));
+        this.bitSize = (long) bits.length() << 6;
+        this.hashCount = Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+    }
+
+    public void put(long id) {
+        long h1 = mix(id);
+        long h2 = mix(h1);
+        for (int i = 0; i < hashCount; i++) {
+            long index = Long.remainderUnsigned(h1 + i * h2, bitSize);
+            int word = (int) (index >>> 6);
+            long mask = 1L << index;
+            long old;
+            do {
+                old = bits.get(word);
+                if ((old & mask) != 0) {
+                    break;
+                }
+            } while (!bits.compareAndSet(word, old, old | mask));
+        }
+    }
+
+    /**
+     * 返回false时一定不存在，返回true时可能存在
+     */
+    public boolean mightContain(long id) {
+        long h1 = mix(id);
+        long h2 = mix(h1);
+        for (int i = 0; i < hashCount; i++) {
+            long index = Long.remainderUnsigned(h1 + i * h2, bitSize);
+            if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long bitSize() {
+        return bitSize;
+    }
+
+    public int hashCount() {
+        return hashCount;
+    }
+
+    /**
+     * SplitMix64的混合函数，连续的id也能均匀分布
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,200 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.UserMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 按缓存key前缀划分的布隆过滤器，拦截数据库中不可能存在的id，防止缓存穿透
+ * 启动时从数据库分批读取全部id建立过滤器，记录建立时的最大id，大于最大id的查询不经过滤器判断：
+ * 之后新增的数据只通过redis发布订阅通知其他节点，消息丢失时不能让新数据被拦截；
+ * 布隆过滤器不能删除元素，定时重建以清除已删除的id，并按最新的数据量重新分配空间，保持误判率
+ * 过滤器还没有建好时放行所有查询
+ */
+@Slf4j
+@Component
+public class BloomFilterGuard implements MessageListener {
+
+    //分批读取id的批大小
+    private static final int LOAD_BATCH_SIZE = 10_000;
+    //预留的增长空间，重建前数据量翻倍时误判率仍接近设定值
+    private static final int GROWTH_FACTOR = 2;
+    private static final int MIN_EXPECTED_INSERTIONS = 1024;
+    //读完之后再读一遍最后这些id，补上读取时还没有提交的插入
+    private static final int TAIL_RESCAN_SIZE = 1_000;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    //key前缀 -> 读取id的表
+    private final Map<String, BaseMapper<?>> sources = new LinkedHashMap<>();
+    //key前缀 -> 正在使用的过滤器
+    private final ConcurrentMap<String, Snapshot> filters = new ConcurrentHashMap<>();
+    //key前缀 -> 正在重建的过滤器，重建期间新增的id同时加入
+    private final ConcurrentMap<String, BloomFilter> building = new ConcurrentHashMap<>();
+
+    @Value("${hmdp.cache.bloom.enabled:false}")
+    private boolean enabled;
+    @Value("${hmdp.cache.bloom.fpp:0.01}")
+    private double fpp;
+
+    public BloomFilterGuard(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer listenerContainer,
+                            ShopMapper shopMapper, BlogMapper blogMapper, UserMapper userMapper) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        sources.put(RedisConstants.CACHE_SHOP_KEY, shopMapper);
+        sources.put(RedisConstants.CACHE_BLOG_KEY, blogMapper);
+        sources.put(RedisConstants.CACHE_USER_KEY, userMapper);
+    }
+
+    @PostConstruct
+    private void init() {
+        if (enabled) {
+            listenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.CACHE_BLOOM_CHANNEL));
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void build() {
+        rebuildAll();
+    }
+
+    @Scheduled(fixedDelay = 3_600_000, initialDelay = 3_600_000)
+    public void rebuildAll() {
+        if (!enabled) {
+            return;
+        }
+        sources.forEach((keyPrefix, mapper) -> {
+            try {
+                rebuild(keyPrefix, mapper);
+            } catch (Exception e) {
+                building.remove(keyPrefix);
+                log.error("重建布隆过滤器失败，keyPrefix={}", keyPrefix, e);
+            }
+        });
+    }
+
+    private <T> void rebuild(String keyPrefix, BaseMapper<T> mapper) {
+        long begin = System.currentTimeMillis();
+        //先记下最大id再读取，读取期间新增的id都大于它，不经过滤器判断
+        long maxId = maxId(mapper);
+        long count = mapper.selectCount(null);
+        BloomFilter filter = new BloomFilter(Math.max(count * GROWTH_FACTOR, MIN_EXPECTED_INSERTIONS), fpp);
+        building.put(keyPrefix, filter);
+        //按主键分批读取，不一次性加载整张表
+        long loaded = load(mapper, filter, 0, maxId);
+        //自增id先分配后提交，读到末尾时id较小的插入可能还没有提交，再读一遍末尾
+        load(mapper, filter, Math.max(0, maxId - TAIL_RESCAN_SIZE), maxId);
+        filters.put(keyPrefix, new Snapshot(filter, maxId));
+        building.remove(keyPrefix, filter);
+        log.info("布隆过滤器已建立，keyPrefix={}，id数={}，最大id={}，位数={}，哈希函数数={}，耗时{}ms",
+                keyPrefix, loaded, maxId, filter.bitSize(), filter.hashCount(), System.currentTimeMillis() - begin);
+    }
+
+    private <T> long maxId(BaseMapper<T> mapper) {
+        List<Object> max = mapper.selectObjs(new QueryWrapper<T>().select("max(id)"));
+        return max.isEmpty() || max.get(0) == null ? 0 : ((Number) max.get(0)).longValue();
+    }
+
+    /**
+     * 分批读取 (fromId, toId] 的id加入过滤器
+     * @return 读取的id数
+     */
+    private <T> long load(BaseMapper<T> mapper, BloomFilter filter, long fromId, long toId) {
+        long lastId = fromId;
+        long loaded = 0;
+        while (true) {
+            List<Object> ids = mapper.selectObjs(new QueryWrapper<T>()
+                    .select("id").gt("id", lastId).le("id", toId).orderByAsc("id").last("limit " + LOAD_BATCH_SIZE));
+            for (Object id : ids) {
+                filter.put(((Number) id).longValue());
+            }
+            loaded += ids.size();
+            if (ids.size() < LOAD_BATCH_SIZE) {
+                return loaded;
+            }
+            lastId = ((Number) ids.get(ids.size() - 1)).longValue();
+        }
+    }
+
+    /**
+     * 判断id是否可能存在，返回false时不必查询缓存和数据库
+     * 大于过滤器建立时最大id的id可能是其他节点刚新增的，通知可能还没到或者已经丢失，不拦截
+     */
+    public boolean mightContain(String keyPrefix, Object id) {
+        Snapshot snapshot = filters.get(keyPrefix);
+        if (snapshot == null || !(id instanceof Number)) {
+            return true;
+        }
+        long value = ((Number) id).longValue();
+        return value > snapshot.maxId || snapshot.filter.mightContain(value);
+    }
+
+    /**
+     * 新增数据后调用，所有节点的过滤器都会加入这个id
+     * 只是尽力通知，新增的id大于过滤器建立时的最大id，没有收到通知也不会被拦截
+     */
+    public void add(String keyPrefix, Long id) {
+        if (!enabled || id == null) {
+            return;
+        }
+        addLocal(keyPrefix, id);
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_BLOOM_CHANNEL, keyPrefix + id);
+    }
+
+    private void addLocal(String keyPrefix, long id) {
+        Snapshot snapshot = filters.get(keyPrefix);
+        if (snapshot != null) {
+            snapshot.filter.put(id);
+        }
+        BloomFilter next = building.get(keyPrefix);
+        if (next != null) {
+            next.put(id);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        //消息格式：key前缀 + id，key前缀以冒号结尾
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int index = body.lastIndexOf(':');
+        try {
+            addLocal(body.substring(0, index + 1), Long.parseLong(body.substring(index + 1)));
+        } catch (NumberFormatException e) {
+            log.warn("无法识别的布隆过滤器通知：{}", body);
+        }
+    }
+
+    /**
+     * 建好的过滤器和建立时的最大id
+     */
+    private static class Snapshot {
+        private final BloomFilter filter;
+        private final long maxId;
+
+        Snapshot(BloomFilter filter, long maxId) {
+            this.filter = filter;
+            this.maxId = maxId;
+        }
+    }
+}
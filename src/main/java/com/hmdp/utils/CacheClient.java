@@ -1,34 +1,228 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
 import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
 
 /**
  * 封装redis工具类
+ * redis前面还有一层进程内的一级缓存，修改数据时通过redis发布订阅通知所有节点删除一级缓存，
+ * 通知带上发送节点的标识，节点收到自己发出的通知时不再删除一次；读redis之前取一级缓存的版本号，期间被删除过的不放入一级缓存
  */
 @Component
 @Slf4j
-public class CacheClient {
+public class CacheClient implements MessageListener {
+
+    //一级缓存中表示数据库中不存在的空值
+    private static final Object NULL_VALUE = new Object();
+    //等待其他线程、其他节点加载缓存的最长时间，和互斥锁的有效期一致
+    private static final long LOAD_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(RedisConstants.LOCK_SHOP_TTL);
+    //本节点内等待同一个key加载结果的最长时间：加载的线程最多等待LOAD_TIMEOUT_MILLIS后自己查询数据库，
+    //等待的线程要比它多等一个查询数据库的时间，不能和它同时超时
+    private static final long COALESCED_WAIT_MILLIS = 2 * LOAD_TIMEOUT_MILLIS;
+    //本节点标识，删除一级缓存的通知格式为 节点标识:key
+    private static final String NODE_ID = UUID.randomUUID().toString(true);
 
     private final StringRedisTemplate stringRedisTemplate;
-    public CacheClient(StringRedisTemplate stringRedisTemplate){
+    private final RedisMessageListenerContainer listenerContainer;
+    private final BloomFilterGuard bloomFilterGuard;
+    @Value("${hmdp.cache.local.enabled:false}")
+    private boolean localEnabled;
+    @Value("${hmdp.cache.local.maximum-size:10000}")
+    private int localMaximumSize;
+    @Value("${hmdp.cache.local.ttl-seconds:30}")
+    private long localTtlSeconds;
+    private LocalCache localCache;
+    //热点key提前刷新
+    @Value("${hmdp.cache.refresh.enabled:false}")
+    private boolean refreshAheadEnabled;
+    @Value("${hmdp.cache.refresh.ahead-seconds:60}")
+    private long refreshAheadSeconds;
+    @Value("${hmdp.cache.refresh.min-hits:10}")
+    private int refreshMinHits;
+    @Value("${hmdp.cache.refresh.max-keys:10000}")
+    private int refreshMaxKeys;
+    @Value("${hmdp.cache.refresh.queue-capacity:1000}")
+    private int refreshQueueCapacity;
+    @Value("${hmdp.cache.refresh.threads:2}")
+    private int refreshThreads;
+    //逻辑过期key的重建队列，开启提前刷新时同时跟踪热点key
+    private RefreshAheadScheduler refresher;
+
+    //redis缓存的命中统计，命中空值也算命中
+    private final LongAdder redisHits = new LongAdder();
+    private final LongAdder redisMisses = new LongAdder();
+    //查询数据库的次数
+    private final LongAdder dbLoads = new LongAdder();
+    //被布隆过滤器拦截的次数
+    private final LongAdder bloomRejects = new LongAdder();
+    //等待本节点其他线程加载结果的次数
+    private final LongAdder coalescedLoads = new LongAdder();
+    //等待其他节点加载结果的次数
+    private final LongAdder remoteWaits = new LongAdder();
+
+    //本节点正在加载的key -> 加载结果，同一个key并发未命中时只有一个线程去加载，其他线程等待同一个结果
+    private final ConcurrentMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    //其他节点正在加载的key -> 加载完成的通知
+    private final ConcurrentMap<String, CompletableFuture<Void>> remoteLoads = new ConcurrentHashMap<>();
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer listenerContainer,
+                       BloomFilterGuard bloomFilterGuard){
         this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.bloomFilterGuard = bloomFilterGuard;
+    }
+
+    /**
+     * 布隆过滤器判断id不存在时直接拦截，不查询缓存和数据库
+     */
+    private boolean mightExist(String keyPrefix, Object id) {
+        if (bloomFilterGuard.mightContain(keyPrefix, id)) {
+            return true;
+        }
+        bloomRejects.increment();
+        return false;
+    }
+
+    @PostConstruct
+    private void init() {
+        refresher = new RefreshAheadScheduler(refreshMaxKeys, refreshQueueCapacity,
+                TimeUnit.SECONDS.toMillis(refreshAheadSeconds), refreshMinHits);
+        refresher.start(refreshThreads);
+        listenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.CACHE_LOADED_CHANNEL));
+        if (localEnabled) {
+            localCache = new LocalCache(localMaximumSize, TimeUnit.SECONDS.toMillis(localTtlSeconds));
+            listenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        refresher.stop();
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit){
         stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
+        invalidateLocal(key);
+    }
+
+    /**
+     * 删除缓存，所有节点的一级缓存同时失效
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        invalidateLocal(key);
+    }
+
+    /**
+     * 删除本节点的一级缓存并通知其他节点
+     */
+    private void invalidateLocal(String key) {
+        if (localCache == null) {
+            return;
+        }
+        localCache.invalidate(key);
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, NODE_ID + ":" + key);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        if (RedisConstants.CACHE_LOADED_CHANNEL.equals(channel)) {
+            //其他节点加载完成，唤醒等待的线程
+            CompletableFuture<Void> loaded = remoteLoads.remove(body);
+            if (loaded != null) {
+                loaded.complete(null);
+            }
+        } else if (localCache != null) {
+            //自己发出的通知，发送前已经删除过本节点的一级缓存
+            int separator = body.indexOf(':');
+            if (separator < 0 || !NODE_ID.equals(body.substring(0, separator))) {
+                localCache.invalidate(separator < 0 ? body : body.substring(separator + 1));
+            }
+        }
+    }
+
+    private Object getLocal(String key) {
+        return localCache == null ? null : localCache.get(key);
+    }
+
+    /**
+     * 一级缓存中key的版本号，读redis之前调用
+     */
+    private long localGeneration(String key) {
+        return localCache == null ? 0 : localCache.generation(key);
+    }
+
+    /**
+     * 读redis期间key没有被删除过才放入一级缓存
+     */
+    private void putLocal(String key, Object value, long generation) {
+        if (localCache != null) {
+            localCache.put(key, value, generation);
+        }
+    }
+
+    /**
+     * 各级缓存的命中率
+     */
+    public Map<String, Object> stats() {
+        long hits = redisHits.sum();
+        long misses = redisMisses.sum();
+        Map<String, Object> redis = new LinkedHashMap<>();
+        redis.put("hits", hits);
+        redis.put("misses", misses);
+        redis.put("hitRatio", hits + misses == 0 ? 0 : (double) hits / (hits + misses));
+        Map<String, Object> stats = new LinkedHashMap<>();
+        if (localCache != null) {
+            stats.put("local", localCache.stats());
+        }
+        stats.put("redis", redis);
+        stats.put("dbLoads", dbLoads.sum());
+        stats.put("bloomRejects", bloomRejects.sum());
+        stats.put("coalescedLoads", coalescedLoads.sum());
+        stats.put("remoteWaits", remoteWaits.sum());
+        Map<String, Object> refresh = new LinkedHashMap<>();
+        refresh.put("trackedKeys", refresher.trackedKeys());
+        refresh.put("queued", refresher.queued());
+        refresh.put("refreshes", refresher.refreshes());
+        refresh.put("dropped", refresher.dropped());
+        stats.put("refresh", refresh);
+        return stats;
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit){
@@ -38,6 +232,7 @@ public class CacheClient {
         redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
         //写入redis
         stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        invalidateLocal(key);
     }
 
     /**
@@ -51,105 +246,413 @@ public class CacheClient {
      */
     public <R,ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,Long time,TimeUnit unit) {
         String key = keyPrefix + id;
+        //0.布隆过滤器判断id不可能存在时直接返回
+        if (!mightExist(keyPrefix, id)) {
+            return null;
+        }
+        //先查一级缓存
+        Object local = getLocal(key);
+        if (local != null) {
+            return local == NULL_VALUE ? null : type.cast(local);
+        }
+        long generation = localGeneration(key);
         //1.从redis查询商铺缓存
         String json = stringRedisTemplate.opsForValue().get(key);
         //2.判断是否存在
         if (StrUtil.isNotBlank(json)) {
             //3.存在，直接返回
-            return JSONUtil.toBean(json, type);
+            redisHits.increment();
+            R r = JSONUtil.toBean(json, type);
+            putLocal(key, r, generation);
+            return r;
         }
         //判断命中的是否是空值
         if (json != null) {
             //返回一个错误信息
+            redisHits.increment();
+            putLocal(key, NULL_VALUE, generation);
             return null;
         }
+        redisMisses.increment();
 
-        //4.不存在，根据id查询数据库
-        R r = dbFallback.apply(id);
-        //5.不存在，返回错误
-        if (r == null) {
-            //将空值写入redis
-            stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-            return null;
+        //4.不存在，根据id查询数据库并写入redis，本节点同一个key只查询一次
+        Object value = loadOnce(key, () -> loadAndCache(key, () -> dbFallback.apply(id), time, unit));
+        putLocal(key, value, generation);
+        return value == NULL_VALUE ? null : type.cast(value);
+    }
+
+    /**
+     * 批量查询，解决缓存穿透
+     * 一级缓存之后一次MGET查询redis，未命中的id一次交给batchDbFallback查询数据库，再用管道一次写回redis，
+     * 无论查询多少个id，访问redis和数据库的次数都是常数
+     * @param batchDbFallback 根据一批id查询数据库，返回 id -> 数据，不存在的id不放入
+     * @return 和ids顺序一致的结果，不存在的id对应null
+     */
+    public <R,ID> List<R> queryBatchWithPassThrough(String keyPrefix, List<ID> ids, Class<R> type,
+                                                  Function<List<ID>, Map<ID, R>> batchDbFallback, Long time, TimeUnit unit) {
+        List<R> result = new ArrayList<>(Collections.nCopies(ids.size(), null));
+        //1.布隆过滤器和一级缓存，剩下的id -> 在结果中的位置，同一个id可能出现多次
+        Map<ID, List<Integer>> pending = new LinkedHashMap<>();
+        for (int i = 0; i < ids.size(); i++) {
+            ID id = ids.get(i);
+            if (!mightExist(keyPrefix, id)) {
+                continue;
+            }
+            Object local = getLocal(keyPrefix + id);
+            if (local != null) {
+                result.set(i, local == NULL_VALUE ? null : type.cast(local));
+            } else {
+                pending.computeIfAbsent(id, k -> new ArrayList<>(1)).add(i);
+            }
+        }
+        if (pending.isEmpty()) {
+            return result;
+        }
+        //2.一次MGET查询redis
+        List<ID> redisIds = new ArrayList<>(pending.keySet());
+        List<String> keys = new ArrayList<>(redisIds.size());
+        long[] generations = new long[redisIds.size()];
+        for (int i = 0; i < redisIds.size(); i++) {
+            keys.add(keyPrefix + redisIds.get(i));
+            generations[i] = localGeneration(keys.get(i));
+        }
+        List<String> jsons = stringRedisTemplate.opsForValue().multiGet(keys);
+        List<ID> misses = new ArrayList<>();
+        for (int i = 0; i < redisIds.size(); i++) {
+            String json = jsons == null ? null : jsons.get(i);
+            if (json == null) {
+                redisMisses.increment();
+                misses.add(redisIds.get(i));
+                continue;
+            }
+            redisHits.increment();
+            Object value = decode(json, type);
+            putLocal(keys.get(i), value, generations[i]);
+            fill(result, pending.get(redisIds.get(i)), value, type);
+        }
+        if (misses.isEmpty()) {
+            return result;
+        }
+        //3.未命中的id一次查询数据库
+        dbLoads.increment();
+        Map<ID, R> loaded = batchDbFallback.apply(misses);
+        //4.用管道写回redis，不存在的id写入空值，并通知所有节点删除一级缓存中的旧值
+        stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object execute(RedisOperations operations) {
+                for (ID id : misses) {
+                    String key = keyPrefix + id;
+                    R r = loaded.get(id);
+                    if (r == null) {
+                        operations.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+                    } else {
+                        operations.opsForValue().set(key, JSONUtil.toJsonStr(r), time, unit);
+                    }
+                    if (localCache != null) {
+                        operations.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, NODE_ID + ":" + key);
+                    }
+                }
+                return null;
+            }
+        });
+        for (ID id : misses) {
+            R r = loaded.get(id);
+            fill(result, pending.get(id), r == null ? NULL_VALUE : r, type);
         }
+        return result;
+    }
 
-        //6.存在，写入redis
-        this.set(key, r, time, unit);
+    private static <R> void fill(List<R> result, List<Integer> positions, Object value, Class<R> type) {
+        R r = value == NULL_VALUE ? null : type.cast(value);
+        for (Integer position : positions) {
+            result.set(position, r);
+        }
+    }
 
-        //7.返回
-        return r;
+    /**
+     * 互斥锁解决缓存击穿
+     * 未命中时本节点内同一个key只有一个线程去加载，其他线程等待它的结果；
+     * 这个线程再通过redis互斥锁和其他节点竞争，没抢到锁时等待持有锁的节点发布加载完成的通知，不轮询redis
+     * @param keyPrefix
+     * @param id
+     * @param type
+     * @return
+     * @param <R>
+     * @param <ID>
+     */
+    public <R,ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        //0.布隆过滤器判断id不可能存在时直接返回
+        if (!mightExist(keyPrefix, id)) {
+            return null;
+        }
+        //先查一级缓存
+        Object local = getLocal(key);
+        if (local != null) {
+            return local == NULL_VALUE ? null : type.cast(local);
+        }
+        long generation = localGeneration(key);
+        //1.从redis查询缓存，命中时直接返回，命中空值返回null
+        String json = stringRedisTemplate.opsForValue().get(key);
+        if (json != null) {
+            redisHits.increment();
+            Object value = decode(json, type);
+            putLocal(key, value, generation);
+            return value == NULL_VALUE ? null : type.cast(value);
+        }
+        redisMisses.increment();
+        //2.未命中，加锁后查询数据库
+        Object value = loadOnce(key, () -> loadWithLock(key, type, () -> dbFallback.apply(id), time, unit));
+        putLocal(key, value, generation);
+        return value == NULL_VALUE ? null : type.cast(value);
     }
 
-    //建立线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    /**
+     * 本节点内合并同一个key的并发加载，第一个线程执行loader，其他线程等待同一个结果
+     */
+    private Object loadOnce(String key, Supplier<Object> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            coalescedLoads.increment();
+            try {
+                return existing.get(COALESCED_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            } catch (TimeoutException e) {
+                throw new RuntimeException("等待缓存加载超时：" + key, e);
+            }
+        }
+        try {
+            Object value = loader.get();
+            future.complete(value);
+            return value;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
 
-    private boolean tryLock(String key){
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
+    /**
+     * 获取redis互斥锁后加载，没抢到锁时等待持有锁的节点加载完成后读取redis
+     * 持有锁的节点宕机时锁到期释放，超过等待时间仍没有结果时直接查询数据库
+     */
+    private Object loadWithLock(String key, Class<?> type, Supplier<?> dbFallback, Long time, TimeUnit unit) {
+        ILock lock = new SimpleRedisLock(key, stringRedisTemplate);
+        long deadline = System.currentTimeMillis() + LOAD_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            //先登记等待再抢锁，避免错过抢锁失败后才发出的通知
+            CompletableFuture<Void> loaded = remoteLoads.computeIfAbsent(key, k -> new CompletableFuture<>());
+            try {
+                if (lock.tryLock(RedisConstants.LOCK_SHOP_TTL)) {
+                    try {
+                        //获取锁后再查一次redis，可能其他节点刚刚加载完成
+                        String json = stringRedisTemplate.opsForValue().get(key);
+                        if (json != null) {
+                            return decode(json, type);
+                        }
+                        return loadAndCache(key, dbFallback, time, unit);
+                    } finally {
+                        lock.unlock();
+                        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_LOADED_CHANNEL, key);
+                    }
+                }
+                remoteWaits.increment();
+                String json = stringRedisTemplate.opsForValue().get(key);
+                if (json == null) {
+                    loaded.get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                    json = stringRedisTemplate.opsForValue().get(key);
+                }
+                if (json != null) {
+                    return decode(json, type);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException | TimeoutException e) {
+                //超时后重新抢锁
+            } finally {
+                remoteLoads.remove(key, loaded);
+            }
+        }
+        log.warn("等待其他节点加载缓存超时，直接查询数据库：{}", key);
+        return loadAndCache(key, dbFallback, time, unit);
     }
 
-    private void unLock(String key){
-        stringRedisTemplate.delete(key);
+    /**
+     * 查询数据库并写入redis，数据库中不存在时写入空值，返回NULL_VALUE
+     */
+    private Object loadAndCache(String key, Supplier<?> dbFallback, Long time, TimeUnit unit) {
+        dbLoads.increment();
+        Object r = dbFallback.get();
+        //写入redis，不存在时写入空值，都要通知其他节点删除一级缓存中的旧值（数据被删除时其他节点还缓存着旧数据）
+        //本节点不删除：一级缓存中没有这个key，调用方会带着读redis之前的版本号放入刚加载的数据
+        if (r == null) {
+            stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+        } else {
+            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(r), time, unit);
+        }
+        if (localCache != null) {
+            stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, NODE_ID + ":" + key);
+        }
+        return r == null ? NULL_VALUE : r;
+    }
+
+    private Object decode(String json, Class<?> type) {
+        return StrUtil.isBlank(json) ? NULL_VALUE : JSONUtil.toBean(json, type);
     }
 
     public <R,ID> R queryWithLogicalExpire(String keyPrefix,ID id,Class<R> type,Function<ID,R>dbFallback,Long time,TimeUnit unit){
         String key = keyPrefix + id;
+        //0.布隆过滤器判断id不可能存在时直接返回
+        if (!mightExist(keyPrefix, id)) {
+            return null;
+        }
+        //先查一级缓存，一级缓存中保存的是反序列化后的数据和逻辑过期时间，逻辑过期后再查redis
+        RedisData cached = (RedisData) getLocal(key);
+        if (cached != null && cached.getExpireTime().isAfter(LocalDateTime.now())) {
+            recordAccess(key, id, type, cached.getExpireTime(), dbFallback, time, unit);
+            return type.cast(cached.getData());
+        }
+        long generation = localGeneration(key);
         //1.从redis查询商铺缓存
         String json = stringRedisTemplate.opsForValue().get(key);
         //2.判断是否存在
         if (StrUtil.isBlank(json)) {
             //3.存在，直接返回
+            redisMisses.increment();
             return null;
         }
+        redisHits.increment();
         //命中，需要判断过期时间，先把json反序列化为对象
         RedisData redisData = JSONUtil.toBean(json, RedisData.class);
         R r = JSONUtil.toBean((JSONObject)redisData.getData(), type);
         LocalDateTime expireTime = redisData.getExpireTime();
         //判断是否过期
         if(expireTime.isAfter(LocalDateTime.now())){
-            //未过期，直接返回店铺信息
+            //未过期，放入一级缓存，直接返回店铺信息
+            redisData.setData(r);
+            putLocal(key, redisData, generation);
+            recordAccess(key, id, type, expireTime, dbFallback, time, unit);
             return r;
         }
 
         //已过期，需要缓存重建
-        //获取互斥锁
-        String lockKey = RedisConstants.LOCK_SHOP_KEY+id;
-        boolean isLock = tryLock(lockKey);
-        //判断是否获取锁成功
-        if(isLock){
-            //1.从redis查询商铺缓存
-            String json2 = stringRedisTemplate.opsForValue().get(key);
-            //2.判断是否存在
-            if (StrUtil.isBlank(json)) {
-                //3.不存在，直接返回
-                return null;
-            }
-            //命中，需要判断过期时间，先把json反序列化为对象
-            RedisData redisData2 = JSONUtil.toBean(json2, RedisData.class);
-            R r2 = JSONUtil.toBean((JSONObject) redisData2.getData(), type);
-            if(redisData2.getExpireTime().isAfter(LocalDateTime.now())){
-                //未过期，直接返回店铺信息
-                return r2;
-            }
-            //如果此时已经过期，那么开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(()->{
-                try {
-                    //查询数据库
-                    R r1 = dbFallback.apply(id);
-                    //写入redis
-                    this.setWithLogicalExpire(key,r1,time,unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }finally {
-                    //释放锁
-                    unLock(lockKey);
+        long expireAt = toEpochMilli(expireTime);
+        if (refreshAheadEnabled && refresher.isHot(key)) {
+            //热点key不返回过期的数据，本节点只有一个线程重建，其他线程等待它的结果
+            Object value = loadOnce(key, () -> reloadHot(key, expireAt, type, () -> dbFallback.apply(id), time, unit));
+            return value == NULL_VALUE ? null : type.cast(value);
+        }
+        //提交到重建队列，同一个key只排一次，队列满时放弃重建，先返回过期的数据
+        refresher.submit(key, expireAt, rebuildTask(key, id, type, dbFallback, time, unit));
+        return r;
+    }
+
+    /**
+     * 记录逻辑过期key的访问，热点key在过期前提前重建
+     * 已经跟踪的key只记录访问次数，重建任务只在开始跟踪时创建一次
+     */
+    private <R, ID> void recordAccess(String key, ID id, Class<R> type, LocalDateTime expireTime, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        if (!refreshAheadEnabled) {
+            return;
+        }
+        long expireAt = toEpochMilli(expireTime);
+        if (!refresher.touch(key, expireAt)) {
+            refresher.recordAccess(key, expireAt, rebuildTask(key, id, type, dbFallback, time, unit));
+        }
+    }
+
+    private <R, ID> LongConsumer rebuildTask(String key, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        return scheduledFor -> reloadLogical(key, scheduledFor, type, () -> dbFallback.apply(id), time, unit);
+    }
+
+    /**
+     * 热点key逻辑过期后重建，不返回过期的数据
+     * 没抢到锁时等待持有锁的节点发布加载完成的通知后重新读取redis，超过等待时间仍没有重建完成时直接查询数据库
+     */
+    private Object reloadHot(String key, long scheduledFor, Class<?> type, Supplier<?> dbFallback, Long time, TimeUnit unit) {
+        long deadline = System.currentTimeMillis() + LOAD_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            //先登记等待再抢锁，避免错过抢锁失败后才发出的通知
+            CompletableFuture<Void> loaded = remoteLoads.computeIfAbsent(key, k -> new CompletableFuture<>());
+            try {
+                Object value = reloadLogical(key, scheduledFor, type, dbFallback, time, unit);
+                if (value != null) {
+                    return value;
+                }
+                remoteWaits.increment();
+                loaded.get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                value = readNewerThan(key, scheduledFor, type);
+                if (value != null) {
+                    return value;
                 }
-            });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException | TimeoutException e) {
+                //超时后重新抢锁
+            } finally {
+                remoteLoads.remove(key, loaded);
+            }
+        }
+        log.warn("等待其他节点重建缓存超时，直接查询数据库：{}", key);
+        return loadLogical(key, dbFallback, time, unit);
+    }
 
+    /**
+     * 获取这个key的互斥锁后重建逻辑过期缓存，锁的粒度是单个key，不同类型的数据互不影响
+     * redis中的过期时间已经晚于scheduledFor说明其他节点已经重建过，不再查询数据库；重建完成后通知等待的节点
+     * @return 重建后的数据，没有重建时返回redis中的数据，不存在时返回NULL_VALUE；没抢到锁并且其他节点还没有重建完成时返回null
+     */
+    private Object reloadLogical(String key, long scheduledFor, Class<?> type, Supplier<?> dbFallback, Long time, TimeUnit unit) {
+        ILock lock = new SimpleRedisLock(key, stringRedisTemplate);
+        if (!lock.tryLock(RedisConstants.LOCK_SHOP_TTL)) {
+            return readNewerThan(key, scheduledFor, type);
+        }
+        try {
+            Object value = readNewerThan(key, scheduledFor, type);
+            return value != null ? value : loadLogical(key, dbFallback, time, unit);
+        } finally {
+            lock.unlock();
+            stringRedisTemplate.convertAndSend(RedisConstants.CACHE_LOADED_CHANNEL, key);
+        }
+    }
+
+    /**
+     * 读取redis中逻辑过期时间晚于scheduledFor的数据，不存在时返回NULL_VALUE，还没有重建时返回null
+     */
+    private Object readNewerThan(String key, long scheduledFor, Class<?> type) {
+        String json = stringRedisTemplate.opsForValue().get(key);
+        if (StrUtil.isBlank(json)) {
+            return NULL_VALUE;
+        }
+        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
+        if (toEpochMilli(redisData.getExpireTime()) <= scheduledFor) {
+            return null;
         }
+        return JSONUtil.toBean((JSONObject) redisData.getData(), type);
+    }
 
-        //成功也返回过期信息，失败，返回过期的商铺信息
+    private Object loadLogical(String key, Supplier<?> dbFallback, Long time, TimeUnit unit) {
+        dbLoads.increment();
+        Object r = dbFallback.get();
+        if (r == null) {
+            //数据库中已经删除
+            delete(key);
+            return NULL_VALUE;
+        }
+        setWithLogicalExpire(key, r, time, unit);
         return r;
+    }
 
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
 }
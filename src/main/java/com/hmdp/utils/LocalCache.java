@@ -0,0 +1,252 @@
+package com.hmdp.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * 进程内的一级缓存，容量和存活时间都有上限
+ * 缓存满时按TinyLFU的方式决定是否接纳新key：用Count-Min Sketch统计最近的访问频率，
+ * 新key的频率高于待淘汰的key才替换它，偶尔访问一次的key不会把热点key挤出去
+ * 缓存的是反序列化后的对象，调用方不能修改返回的对象
+ * 每个key有版本号（按hash分段），删除时加一；调用方读redis之前取版本号，写入时版本号变了说明期间数据被修改过，不写入，
+ * 避免先读到旧数据、后收到删除通知的请求把旧数据放回缓存
+ */
+public class LocalCache {
+
+    //新key替换不了待淘汰的key时，最多再试几个
+    private static final int MAX_VICTIM_PROBES = 4;
+    //版本号的分段数，不同key共用一段时只会偶尔多放弃一次写入
+    private static final int GENERATION_STRIPES = 4096;
+
+    private final int maximumSize;
+    private final long ttlMillis;
+    private final LongSupplier clock;
+    private final ConcurrentMap<String, Entry> map = new ConcurrentHashMap<>();
+    //按写入顺序排列的key，淘汰时从队头取
+    private final Queue<String> order = new ConcurrentLinkedQueue<>();
+    private final FrequencySketch sketch;
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    //频率不够没有被接纳的次数
+    private final LongAdder rejections = new LongAdder();
+    //读取期间被删除，放弃写入的次数
+    private final LongAdder staleWrites = new LongAdder();
+
+    public LocalCache(int maximumSize, long ttlMillis) {
+        this(maximumSize, ttlMillis, System::currentTimeMillis);
+    }
+
+    LocalCache(int maximumSize, long ttlMillis, LongSupplier clock) {
+        this.maximumSize = maximumSize;
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+        this.sketch = new FrequencySketch(maximumSize);
+    }
+
+    /**
+     * 查询缓存，未命中或者已过期返回null
+     */
+    public Object get(String key) {
+        //未命中也要记录频率，反复被访问的key才能被接纳
+        sketch.increment(key);
+        Entry entry = map.get(key);
+        if (entry == null || entry.expireAt <= clock.getAsLong()) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.value;
+    }
+
+    public void put(String key, Object value) {
+        doPut(key, value);
+    }
+
+    /**
+     * key当前的版本号，读取数据之前调用，写入时传给 {@link #put(String, Object, long)}
+     */
+    public long generation(String key) {
+        return generations.get(stripeOf(key));
+    }
+
+    /**
+     * 版本号没有变化时才写入，版本号变化说明读取期间数据被修改过，读到的可能是旧数据
+     */
+    public void put(String key, Object value, long generation) {
+        int stripe = stripeOf(key);
+        if (generations.get(stripe) != generation) {
+            staleWrites.increment();
+            return;
+        }
+        Entry entry = doPut(key, value);
+        //写入的同时被删除：删除先加版本号再移除，这里再检查一次，移除自己刚写入的值
+        if (entry != null && generations.get(stripe) != generation && map.remove(key, entry)) {
+            staleWrites.increment();
+        }
+    }
+
+    private Entry doPut(String key, Object value) {
+        Entry entry = new Entry(value, clock.getAsLong() + ttlMillis);
+        //已经缓存的key直接覆盖
+        if (map.replace(key, entry) != null) {
+            return entry;
+        }
+        if (map.size() >= maximumSize && !evictFor(key)) {
+            rejections.increment();
+            return null;
+        }
+        if (map.putIfAbsent(key, entry) == null) {
+            order.offer(key);
+        } else {
+            map.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * 为新key腾出位置，新key的频率不高于待淘汰的key时返回false
+     */
+    private boolean evictFor(String key) {
+        long now = clock.getAsLong();
+        int candidateFrequency = sketch.frequency(key);
+        for (int i = 0; i < MAX_VICTIM_PROBES && map.size() >= maximumSize; i++) {
+            String victim = order.poll();
+            if (victim == null) {
+                break;
+            }
+            Entry entry = map.get(victim);
+            if (entry == null) {
+                //已经被删除
+                continue;
+            }
+            if (entry.expireAt > now && sketch.frequency(victim) >= candidateFrequency) {
+                //待淘汰的key更热，放回队尾，拒绝新key
+                order.offer(victim);
+                return false;
+            }
+            if (map.remove(victim, entry)) {
+                evictions.increment();
+            }
+        }
+        return map.size() < maximumSize;
+    }
+
+    /**
+     * 删除缓存，其他节点修改数据后通过发布订阅调用
+     */
+    public void invalidate(String key) {
+        generations.incrementAndGet(stripeOf(key));
+        if (map.remove(key) != null) {
+            order.remove(key);
+        }
+    }
+
+    private static int stripeOf(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (GENERATION_STRIPES - 1);
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public Map<String, Object> stats() {
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("size", map.size());
+        stats.put("hits", hitCount);
+        stats.put("misses", missCount);
+        stats.put("hitRatio", hitCount + missCount == 0 ? 0 : (double) hitCount / (hitCount + missCount));
+        stats.put("evictions", evictions.sum());
+        stats.put("rejections", rejections.sum());
+        stats.put("staleWrites", staleWrites.sum());
+        return stats;
+    }
+
+    private static class Entry {
+        private final Object value;
+        private final long expireAt;
+
+        Entry(Object value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /**
+     * Count-Min Sketch，4行计数器取最小值作为频率估计，计数最大15，每行的计数器个数是容量的8倍以减少冲突
+     * 累计记录次数达到容量的10倍后所有计数减半，让频率反映最近的访问
+     * 计数器的并发自增不加锁，偶尔丢失一次计数不影响频率的比较
+     */
+    static class FrequencySketch {
+
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+        private static final int MAX_COUNT = 15;
+
+        private final byte[][] table;
+        private final int mask;
+        private final int sampleSize;
+        private final AtomicInteger additions = new AtomicInteger();
+
+        FrequencySketch(int maximumSize) {
+            int width = Integer.highestOneBit(Math.max(maximumSize, 16) - 1) << 4;
+            this.table = new byte[SEEDS.length][width];
+            this.mask = width - 1;
+            this.sampleSize = Math.max(maximumSize, 16) * 10;
+        }
+
+        void increment(String key) {
+            int hash = key.hashCode();
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int index = indexOf(hash, i);
+                if (table[i][index] < MAX_COUNT) {
+                    table[i][index]++;
+                    added = true;
+                }
+            }
+            if (added && additions.incrementAndGet() >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(String key) {
+            int hash = key.hashCode();
+            int frequency = MAX_COUNT;
+            for (int i = 0; i < SEEDS.length; i++) {
+                frequency = Math.min(frequency, table[i][indexOf(hash, i)]);
+            }
+            return frequency;
+        }
+
+        private synchronized void reset() {
+            if (additions.get() < sampleSize) {
+                return;
+            }
+            for (byte[] row : table) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] >>= 1;
+                }
+            }
+            additions.set(0);
+        }
+
+        private int indexOf(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * SEEDS[row];
+            h ^= h >>> 16;
+            return h & mask;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.hmdp.utils;
+
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * 订单批量落库的统计指标，包括每个分区的队列深度和消费延迟
+ */
+@Component
+public class OrderBatchMetrics {
+
+    //批次数
+    private final LongAdder batches = new LongAdder();
+    //批量写入的订单数
+    private final LongAdder orders = new LongAdder();
+    //批量失败后退回逐条处理的批次数
+    private final LongAdder fallbacks = new LongAdder();
+    //批次总耗时
+    private final LongAdder totalLatencyMs = new LongAdder();
+    //单批最大耗时
+    private final AtomicLong maxLatencyMs = new AtomicLong();
+    //最近一批的大小
+    private volatile int lastBatchSize;
+    //分区号 -> 分区队列深度
+    private final ConcurrentMap<Integer, IntSupplier> partitionDepths = new ConcurrentHashMap<>();
+    //分区号 -> 最近一批消息从写入stream到落库完成的毫秒数
+    private final ConcurrentMap<Integer, Long> partitionLagMs = new ConcurrentHashMap<>();
+
+    public void registerPartition(int partition, IntSupplier depth) {
+        partitionDepths.put(partition, depth);
+    }
+
+    public void recordLag(int partition, long lagMs) {
+        partitionLagMs.put(partition, lagMs);
+    }
+
+    public void recordBatch(int size, long latencyMs) {
+        batches.increment();
+        orders.add(size);
+        totalLatencyMs.add(latencyMs);
+        maxLatencyMs.accumulateAndGet(latencyMs, Math::max);
+        lastBatchSize = size;
+    }
+
+    public void recordFallback() {
+        fallbacks.increment();
+    }
+
+    public Map<String, Object> snapshot() {
+        long batchCount = batches.sum();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("batches", batchCount);
+        map.put("orders", orders.sum());
+        map.put("fallbacks", fallbacks.sum());
+        map.put("lastBatchSize", lastBatchSize);
+        map.put("avgBatchSize", batchCount == 0 ? 0 : orders.sum() / batchCount);
+        map.put("avgLatencyMs", batchCount == 0 ? 0 : totalLatencyMs.sum() / batchCount);
+        map.put("maxLatencyMs", maxLatencyMs.get());
+        List<Map<String, Object>> partitions = new ArrayList<>();
+        partitionDepths.forEach((partition, depth) -> {
+            Map<String, Object> p = new LinkedHashMap<>();
+            p.put("partition", partition);
+            p.put("depth", depth.getAsInt());
+            p.put("lagMs", partitionLagMs.getOrDefault(partition, 0L));
+            partitions.add(p);
+        });
+        map.put("partitions", partitions);
+        return map;
+    }
+}
@@ -13,10 +13,31 @@ public class RedisConstants {
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
 
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
+
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_BLOOM_CHANNEL = "cache:bloom";
+    public static final String CACHE_LOADED_CHANNEL = "cache:loaded";
+
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final String SECKILL_SOLD_OUT_KEY = "seckill:soldout:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout:channel";
+    public static final String SECKILL_ORDER_STATUS_KEY = "seckill:status:";
+    public static final Long SECKILL_ORDER_STATUS_TTL = 1800L;
+    public static final String SECKILL_ORDER_DELAY_KEY = "seckill:delay:orders";
+    public static final String SECKILL_STOCK_SYNC_LOCK = "lock:seckill:stock-sync";
+    public static final String SECKILL_LEASE_KEY = "seckill:lease:";
+    public static final String SECKILL_ROOM_KEY = "seckill:room:";
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_DLQ_STREAM = "stream.orders.dlq";
+    public static final String SECKILL_ORDER_GROUP = "g1";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
@@ -1,15 +1,30 @@
 package com.hmdp.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 用redis实现全局id生成器
+ * 号段模式下每个节点用INCRBY一次领取一段序列号，在本地用原子计数分配，
+ * 当前号段用到80%时在后台预取下一段，大部分id不需要访问redis
+ * 配置在snowflake-prefixes中的业务改用SnowflakeIdWorker在本地生成，完全不访问redis
+ * id中的时间戳是本地时间按UTC换算的秒数，与已有的id保持一致，SnowflakeIdWorker也用这个基准
+ * 序列号的最高位固定为0，雪花id的这一位固定为1，同一个业务前缀两种方式混用（例如滚动发布期间配置不一致）也不会生成相同的id
  */
+@Slf4j
 @Component
 public class RedisIdWorker {
 
@@ -19,14 +34,43 @@ public class RedisIdWorker {
     private static final long BEGIN_TIMESTAMP = 1640995200L;
     //序列号的位数
     private static final int COUNT_BITS = 32;
+    //序列号的上限，最高位留给雪花id的标记位
+    private static final long MAX_COUNT = (1L << (COUNT_BITS - 1)) - 1;
+    //日期格式，线程安全，不需要每次创建
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+    //号段用到该比例时预取下一段
+    private static final double PREFETCH_RATIO = 0.8;
 
     private StringRedisTemplate stringRedisTemplate;
+    private SnowflakeIdWorker snowflakeIdWorker;
 
-    public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
+    //是否开启号段模式
+    @Value("${hmdp.id.segment-enabled:false}")
+    private boolean segmentEnabled;
+    //每个号段的序列号个数
+    @Value("${hmdp.id.segment-step:1000}")
+    private long segmentStep;
+    //使用本地雪花算法生成id的业务前缀
+    @Value("${hmdp.id.snowflake-prefixes:}")
+    private Set<String> snowflakePrefixes;
+
+    //业务前缀 -> 当天的号段
+    private final ConcurrentMap<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate, SnowflakeIdWorker snowflakeIdWorker) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.snowflakeIdWorker = snowflakeIdWorker;
     }
 
     public long nextId(String keyPrefix){
+        if (snowflakePrefixes.contains(keyPrefix)) {
+            return snowflakeIdWorker.nextId();
+        }
         //订单id=符号位1+时间戳31+序列号32
         //1.生成时间戳
         LocalDateTime now = LocalDateTime.now();
@@ -35,15 +79,137 @@ public class RedisIdWorker {
 
         //2.生成序列号,这里如果直接用自增长的key作为序列号，之后数据量可能会超过2的32次方，因此最好设立以每天日期作为key
         //获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));//自定义格式
+        String date = now.format(DATE_FORMATTER);//自定义格式
 
         //自增长
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        long count = segmentEnabled
+                ? nextCount(keyPrefix, date)
+                : stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+
+        if (count > MAX_COUNT) {
+            throw new IllegalStateException("当天的序列号已用完，key=icr:" + keyPrefix + ":" + date);
+        }
 
         //3.拼接并返回
         return timestamp << COUNT_BITS | count;
     }
 
+    /**
+     * 从本地号段中分配序列号
+     */
+    private long nextCount(String keyPrefix, String date) {
+        SegmentBuffer buffer = buffers.get(keyPrefix);
+        if (buffer == null || !buffer.date.equals(date)) {
+            //跨天后换用新日期的key，旧号段剩余的序列号直接丢弃
+            buffer = buffers.compute(keyPrefix, (k, b) ->
+                    b != null && b.date.equals(date) ? b : new SegmentBuffer("icr:" + k + ":" + date, date));
+        }
+        while (true) {
+            Segment segment = buffer.current;
+            if (segment == null) {
+                synchronized (buffer) {
+                    if (buffer.current == null) {
+                        buffer.current = fetchSegment(buffer.key);
+                    }
+                }
+                continue;
+            }
+            long count = segment.cursor.getAndIncrement();
+            if (count < segment.end) {
+                //用到一定比例时预取下一段，同一时间只有一个预取任务
+                if (count >= segment.prefetchAt && buffer.next == null && buffer.loading.compareAndSet(false, true)) {
+                    prefetch(buffer);
+                }
+                return count;
+            }
+            //当前号段已用完，切换到预取好的号段；预取还没完成时同步领取
+            synchronized (buffer) {
+                if (buffer.current == segment) {
+                    Segment next = buffer.next;
+                    if (next != null) {
+                        buffer.current = next;
+                        buffer.next = null;
+                    } else {
+                        buffer.current = fetchSegment(buffer.key);
+                    }
+                }
+            }
+        }
+    }
+
+    private void prefetch(SegmentBuffer buffer) {
+        prefetchExecutor.execute(() -> {
+            try {
+                Segment segment = fetchSegment(buffer.key);
+                synchronized (buffer) {
+                    buffer.next = segment;
+                }
+            } catch (Exception e) {
+                //预取失败时等号段用完再同步领取
+                log.error("预取号段失败，key={}", buffer.key, e);
+            } finally {
+                buffer.loading.set(false);
+            }
+        });
+    }
+
+    /**
+     * INCRBY领取一段序列号 [end - step + 1, end]
+     */
+    private Segment fetchSegment(String key) {
+        Long end = stringRedisTemplate.opsForValue().increment(key, segmentStep);
+        if (end == null) {
+            throw new IllegalStateException("领取号段失败，key=" + key);
+        }
+        return new Segment(end - segmentStep + 1, end + 1, segmentStep);
+    }
+
+    /**
+     * 一个业务前缀当天的号段，current正在使用，next为预取的下一段
+     */
+    private static class SegmentBuffer {
+        private final String key;
+        private final String date;
+        private volatile Segment current;
+        private volatile Segment next;
+        private final AtomicBoolean loading = new AtomicBoolean();
+
+        SegmentBuffer(String key, String date) {
+            this.key = key;
+            this.date = date;
+        }
+    }
+
+    /**
+     * 号段 [start, end)
+     */
+    private static class Segment {
+        private final long end;
+        private final long prefetchAt;
+        private final AtomicLong cursor;
+
+        Segment(long start, long end, long step) {
+            this.end = end;
+            this.prefetchAt = start + (long) (step * PREFETCH_RATIO);
+            this.cursor = new AtomicLong(start);
+        }
+    }
+
+    /**
+     * 该时间对应的最小id，这一秒及之后生成的id都不小于它
+     * id的高32位是生成时的秒数，时间范围可以直接换算为主键范围，按主键范围扫描，不需要create_time索引
+     */
+    public static long minIdOf(LocalDateTime time) {
+        return (time.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP) << COUNT_BITS;
+    }
+
+    /**
+     * id的生成时间，精确到秒
+     */
+    public static LocalDateTime timeOf(long id) {
+        return LocalDateTime.ofEpochSecond((id >>> COUNT_BITS) + BEGIN_TIMESTAMP, 0, ZoneOffset.UTC);
+    }
+
     //生成初始时间
     public static void main(String[] args) {
         LocalDateTime time = LocalDateTime.of(2022, 1, 1, 0, 0, 0);
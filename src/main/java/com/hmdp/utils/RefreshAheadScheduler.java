@@ -0,0 +1,246 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * 逻辑过期key的提前刷新
+ * 记录每个key的访问频率，访问频率达到阈值的热点key在逻辑过期前提前重建，很少访问的key不跟踪，到期后按原来的方式处理
+ * 每个key的刷新时间在提前量的一半到全部之间按key打散，避免同一批写入的key同时重建；
+ * 重建任务按过期时间排在有界的优先队列中，同一个key只排一次，队列满时丢弃，由固定数量的线程执行
+ */
+@Slf4j
+public class RefreshAheadScheduler {
+
+    //访问频率的统计窗口，每个窗口结束时频率减半
+    private static final long WINDOW_MILLIS = 10_000;
+
+    private final int maxTrackedKeys;
+    private final int queueCapacity;
+    private final long aheadMillis;
+    private final int minHits;
+    private final LongSupplier clock;
+
+    private final ConcurrentMap<String, Tracked> tracked = new ConcurrentHashMap<>();
+    //按过期时间排序的重建任务
+    private final PriorityBlockingQueue<Task> queue = new PriorityBlockingQueue<>();
+    //已经在队列中或者正在重建的key
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private volatile long windowStart;
+
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private ScheduledExecutorService timer;
+    private ExecutorService workers;
+
+    public RefreshAheadScheduler(int maxTrackedKeys, int queueCapacity, long aheadMillis, int minHits) {
+        this(maxTrackedKeys, queueCapacity, aheadMillis, minHits, System::currentTimeMillis);
+    }
+
+    RefreshAheadScheduler(int maxTrackedKeys, int queueCapacity, long aheadMillis, int minHits, LongSupplier clock) {
+        this.maxTrackedKeys = maxTrackedKeys;
+        this.queueCapacity = queueCapacity;
+        this.aheadMillis = aheadMillis;
+        this.minHits = minHits;
+        this.clock = clock;
+        this.windowStart = clock.getAsLong();
+    }
+
+    /**
+     * 启动扫描线程和重建线程
+     */
+    public void start(int threads) {
+        AtomicInteger index = new AtomicInteger();
+        timer = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "cache-refresh-timer"));
+        timer.scheduleWithFixedDelay(() -> {
+            try {
+                tick();
+            } catch (Exception e) {
+                log.error("扫描提前刷新的key失败", e);
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+        workers = Executors.newFixedThreadPool(threads, r -> daemon(r, "cache-refresh-" + index.incrementAndGet()));
+        for (int i = 0; i < threads; i++) {
+            workers.submit(this::work);
+        }
+    }
+
+    public void stop() {
+        if (timer != null) {
+            timer.shutdownNow();
+            workers.shutdownNow();
+        }
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * 记录一次访问
+     * @param expireAt 当前缓存的逻辑过期时间
+     * @param reload 重建缓存，参数是安排重建时的逻辑过期时间，用于判断其他节点是否已经重建过
+     */
+    public void recordAccess(String key, long expireAt, LongConsumer reload) {
+        if (touch(key, expireAt)) {
+            return;
+        }
+        Tracked t = tracked.computeIfAbsent(key, k -> new Tracked(k, reload));
+        t.hits.increment();
+        t.expireAt = expireAt;
+    }
+
+    /**
+     * 已经跟踪的key记录一次访问，调用方不需要为每次访问创建重建任务
+     * @return 已经跟踪或者跟踪的key已满时返回true，返回false时需要调用 {@link #recordAccess} 开始跟踪
+     */
+    public boolean touch(String key, long expireAt) {
+        Tracked t = tracked.get(key);
+        if (t == null) {
+            return tracked.size() >= maxTrackedKeys;
+        }
+        t.hits.increment();
+        t.expireAt = expireAt;
+        return true;
+    }
+
+    /**
+     * 是否是正在跟踪的热点key
+     */
+    public boolean isHot(String key) {
+        Tracked t = tracked.get(key);
+        return t != null && t.score + t.hits.sum() >= minHits;
+    }
+
+    /**
+     * 提交重建任务，同一个key已经在排队时不重复提交，队列满时丢弃
+     * @return 是否提交成功
+     */
+    public boolean submit(String key, long expireAt, LongConsumer reload) {
+        if (pending.size() >= queueCapacity) {
+            dropped.increment();
+            return false;
+        }
+        if (!pending.add(key)) {
+            return false;
+        }
+        queue.offer(new Task(key, expireAt, reload));
+        return true;
+    }
+
+    /**
+     * 每秒扫描一次：统计窗口结束时衰减访问频率并移除冷key，热点key到了刷新时间就提交重建
+     */
+    void tick() {
+        long now = clock.getAsLong();
+        boolean windowEnd = now - windowStart >= WINDOW_MILLIS;
+        if (windowEnd) {
+            windowStart = now;
+        }
+        for (Map.Entry<String, Tracked> entry : tracked.entrySet()) {
+            Tracked t = entry.getValue();
+            if (windowEnd) {
+                t.score = t.score / 2 + t.hits.sumThenReset();
+                if (t.score < minHits) {
+                    //访问少的key不再跟踪，到期后由访问它的请求触发重建
+                    tracked.remove(entry.getKey(), t);
+                    continue;
+                }
+            }
+            long expireAt = t.expireAt;
+            if (t.score >= minHits && expireAt != t.scheduledFor && now >= expireAt - t.ahead) {
+                if (submit(t.key, expireAt, t.reload)) {
+                    t.scheduledFor = expireAt;
+                }
+            }
+        }
+    }
+
+    private void work() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Task task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                task.reload.accept(task.expireAt);
+                refreshes.increment();
+            } catch (Exception e) {
+                log.error("提前刷新缓存失败：{}", task.key, e);
+            } finally {
+                pending.remove(task.key);
+            }
+        }
+    }
+
+    public int trackedKeys() {
+        return tracked.size();
+    }
+
+    public long refreshes() {
+        return refreshes.sum();
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    public int queued() {
+        return queue.size();
+    }
+
+    private class Tracked {
+        private final String key;
+        private final LongConsumer reload;
+        //刷新提前量，在aheadMillis的一半到全部之间按key打散
+        private final long ahead;
+        private final LongAdder hits = new LongAdder();
+        //之前窗口衰减后的访问次数
+        private volatile long score;
+        private volatile long expireAt;
+        //已经为哪个过期时间提交过重建
+        private volatile long scheduledFor;
+
+        Tracked(String key, LongConsumer reload) {
+            this.key = key;
+            this.reload = reload;
+            this.ahead = aheadMillis / 2 + Math.floorMod(key.hashCode(), 1000) * (aheadMillis / 2) / 1000;
+        }
+    }
+
+    private static class Task implements Comparable<Task> {
+        private final String key;
+        private final long expireAt;
+        private final LongConsumer reload;
+
+        Task(String key, long expireAt, LongConsumer reload) {
+            this.key = key;
+            this.expireAt = expireAt;
+            this.reload = reload;
+        }
+
+        @Override
+        public int compareTo(Task o) {
+            return Long.compare(expireAt, o.expireAt);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.hmdp.utils;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 预分配槽位的有界环形队列，多生产者多消费者，入队出队只用CAS，不加锁
+ * 每个槽位带一个序号：序号等于入队位置时槽位可写，等于入队位置+1时槽位可读，
+ * 读完后序号加上容量，留给下一圈使用；入队不创建链表节点
+ * 队列空或满时按等待策略等待，只有BLOCKING策略在等待时才会用到锁
+ */
+public class RingBuffer<E> {
+
+    /**
+     * 队列空或满时的等待策略
+     */
+    public enum WaitStrategy {
+        //一直自旋，延迟最低，但是等待期间占满一个CPU
+        BUSY_SPIN,
+        //自旋一段时间后让出CPU
+        YIELDING,
+        //挂起线程，等待另一端唤醒
+        BLOCKING
+    }
+
+    private static final int SPIN_TRIES = 100;
+
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final AtomicReferenceArray<E> slots;
+    private final AtomicLong enqueuePos = new AtomicLong();
+    private final AtomicLong dequeuePos = new AtomicLong();
+    private final WaitStrategy waitStrategy;
+
+    //BLOCKING策略使用，没有线程在等待时入队出队不会碰这把锁
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final AtomicInteger emptyWaiters = new AtomicInteger();
+    private final AtomicInteger fullWaiters = new AtomicInteger();
+
+    /**
+     * @param capacity 容量，向上取整为2的幂
+     */
+    public RingBuffer(int capacity, WaitStrategy waitStrategy) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        this.slots = new AtomicReferenceArray<>(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * 入队，队列满时返回false
+     */
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        long pos = enqueuePos.get();
+        int index;
+        while (true) {
+            index = (int) (pos & mask);
+            long dif = sequences.get(index) - pos;
+            if (dif == 0) {
+                //槽位可写，抢占这个位置
+                if (enqueuePos.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = enqueuePos.get();
+            } else if (dif < 0) {
+                //上一圈的元素还没有被取走，队列已满
+                return false;
+            } else {
+                pos = enqueuePos.get();
+            }
+        }
+        slots.set(index, e);
+        //写入序号，消费者看到序号后才会读取槽位
+        sequences.set(index, pos + 1);
+        signal(emptyWaiters, notEmpty);
+        return true;
+    }
+
+    /**
+     * 出队，队列空时返回null
+     */
+    public E poll() {
+        long pos = dequeuePos.get();
+        int index;
+        while (true) {
+            index = (int) (pos & mask);
+            long dif = sequences.get(index) - (pos + 1);
+            if (dif == 0) {
+                if (dequeuePos.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = dequeuePos.get();
+            } else if (dif < 0) {
+                //生产者还没有写入，队列为空
+                return null;
+            } else {
+                pos = dequeuePos.get();
+            }
+        }
+        E e = slots.get(index);
+        slots.set(index, null);
+        //槽位留给下一圈
+        sequences.set(index, pos + mask + 1);
+        signal(fullWaiters, notFull);
+        return e;
+    }
+
+    /**
+     * 入队，队列满时等待
+     */
+    public void put(E e) throws InterruptedException {
+        for (int tries = 0; !offer(e); tries++) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (waitStrategy == WaitStrategy.BLOCKING) {
+                await(fullWaiters, notFull, this::isFull, TimeUnit.MILLISECONDS.toNanos(100));
+            } else {
+                idle(tries);
+            }
+        }
+    }
+
+    /**
+     * 出队，队列空时最多等待timeout
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (int tries = 0; ; tries++) {
+            E e = poll();
+            if (e != null) {
+                return e;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (waitStrategy == WaitStrategy.BLOCKING) {
+                await(emptyWaiters, notEmpty, this::isEmpty, remaining);
+            } else {
+                idle(tries);
+            }
+        }
+    }
+
+    /**
+     * 取出最多max个元素放入集合
+     * @return 取出的个数
+     */
+    public int drainTo(Collection<? super E> c, int max) {
+        int n = 0;
+        E e;
+        while (n < max && (e = poll()) != null) {
+            c.add(e);
+            n++;
+        }
+        return n;
+    }
+
+    public int size() {
+        long size = enqueuePos.get() - dequeuePos.get();
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    private boolean isFull() {
+        return size() > mask;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    private void idle(int tries) {
+        if (waitStrategy == WaitStrategy.YIELDING && tries > SPIN_TRIES) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * 先登记等待者再检查条件，入队/出队的一方先修改位置再检查等待者，二者至少有一方能看到对方，不会丢失唤醒
+     */
+    private void await(AtomicInteger waiters, Condition condition, BooleanSupplier stillWaiting,
+                       long nanos) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            waiters.incrementAndGet();
+            try {
+                if (stillWaiting.getAsBoolean()) {
+                    condition.awaitNanos(nanos);
+                }
+            } finally {
+                waiters.decrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signal(AtomicInteger waiters, Condition condition) {
+        if (waitStrategy != WaitStrategy.BLOCKING || waiters.get() == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            condition.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
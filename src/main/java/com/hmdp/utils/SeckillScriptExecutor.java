@@ -0,0 +1,233 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 执行seckill.lua
+ * 开启合并后，并发的秒杀请求先进入队列，由合并线程在linger时间内凑成一批，用一次脚本调用完成，
+ * 减少redis往返和连接池争用；关闭时每个请求单独执行一次脚本，不启动合并线程
+ */
+@Slf4j
+@Component
+public class SeckillScriptExecutor {
+
+    /**
+     * 等待合并执行的结果超时或者批量调用出错，脚本可能已经执行，订单是否创建以订单状态为准
+     */
+    public static final long UNKNOWN = -1;
+    //等待合并执行结果的最长时间
+    private static final long RESULT_TIMEOUT_SECONDS = 2;
+
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> SECKILL_SCRIPT;
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(List.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.seckill.coalesce.enabled:false}")
+    private boolean coalesceEnabled;
+    //一批最多合并的请求数
+    @Value("${hmdp.seckill.coalesce.max-batch:64}")
+    private int maxBatch;
+    //凑批最长等待时间，微秒
+    @Value("${hmdp.seckill.coalesce.linger-micros:200}")
+    private long lingerMicros;
+    //合并线程数，即同时在途的脚本调用数
+    @Value("${hmdp.seckill.coalesce.dispatchers:2}")
+    private int dispatchers;
+    //请求队列容量，队列满时请求直接单独执行
+    @Value("${hmdp.seckill.coalesce.capacity:65536}")
+    private int capacity;
+    @Value("${hmdp.seckill.coalesce.wait-strategy:BLOCKING}")
+    private RingBuffer.WaitStrategy waitStrategy;
+    //未支付订单自动取消的超时时间
+    @Value("${hmdp.seckill.order.pay-timeout-minutes:15}")
+    private long payTimeoutMinutes;
+
+    private RingBuffer<SeckillRequest> requests;
+    private ExecutorService dispatchExecutor;
+    private volatile boolean running = true;
+
+    public SeckillScriptExecutor(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!coalesceEnabled) {
+            return;
+        }
+        requests = new RingBuffer<>(capacity, waitStrategy);
+        dispatchExecutor = Executors.newFixedThreadPool(dispatchers);
+        for (int i = 0; i < dispatchers; i++) {
+            dispatchExecutor.submit(this::dispatchLoop);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        if (dispatchExecutor == null) {
+            return;
+        }
+        //不再等待新请求，队列中已有的请求执行完再退出，避免调用方一直等到超时
+        running = false;
+        dispatchExecutor.shutdown();
+        if (!dispatchExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+            dispatchExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * 执行一次秒杀判断
+     * @param leaseNode 库存已经由该节点租用到本地时为节点标识，否则为空串
+     * @return seckill.lua的结果码，合并执行等待超时或者批量调用出错返回 {@link #UNKNOWN}
+     */
+    public long execute(Long voucherId, Long userId, long orderId, String leaseNode) {
+        if (!coalesceEnabled) {
+            return executeDirect(voucherId, userId, orderId, leaseNode);
+        }
+        return executeCoalesced(voucherId, userId, orderId, leaseNode);
+    }
+
+    /**
+     * 单独执行一次脚本
+     */
+    public long executeDirect(Long voucherId, Long userId, long orderId) {
+        return executeDirect(voucherId, userId, orderId, "");
+    }
+
+    public long executeDirect(Long voucherId, Long userId, long orderId, String leaseNode) {
+        List<?> result = stringRedisTemplate.execute(
+                SECKILL_SCRIPT,
+                Collections.emptyList(),
+                RedisConstants.SECKILL_ORDER_STATUS_TTL.toString(),
+                String.valueOf(TimeUnit.MINUTES.toMillis(payTimeoutMinutes)),
+                voucherId.toString(), userId.toString(), String.valueOf(orderId), leaseNode
+        );
+        return ((Number) result.get(0)).longValue();
+    }
+
+    /**
+     * 放入队列，等待合并线程批量执行，没有开启合并时单独执行
+     * @return seckill.lua的结果码，等待超时或者批量调用出错返回 {@link #UNKNOWN}
+     */
+    public long executeCoalesced(Long voucherId, Long userId, long orderId) {
+        return executeCoalesced(voucherId, userId, orderId, "");
+    }
+
+    public long executeCoalesced(Long voucherId, Long userId, long orderId, String leaseNode) {
+        if (requests == null) {
+            return executeDirect(voucherId, userId, orderId, leaseNode);
+        }
+        SeckillRequest request = new SeckillRequest(voucherId, userId, orderId, leaseNode);
+        if (!requests.offer(request)) {
+            //队列已满，不再排队
+            return executeDirect(voucherId, userId, orderId, leaseNode);
+        }
+        try {
+            return request.future.get(RESULT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("秒杀请求被中断", e);
+        } catch (TimeoutException e) {
+            //请求可能已经在途，脚本执行后订单照常创建，不能当作失败
+            log.warn("等待秒杀脚本结果超时，订单{}的结果以订单状态为准", orderId);
+            return UNKNOWN;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("秒杀脚本执行失败", e);
+        }
+    }
+
+    private void dispatchLoop() {
+        List<SeckillRequest> batch = new ArrayList<>(maxBatch);
+        while (running || !requests.isEmpty()) {
+            try {
+                SeckillRequest first = requests.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                //在linger时间内继续凑批
+                long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(lingerMicros);
+                while (batch.size() < maxBatch) {
+                    requests.drainTo(batch, maxBatch - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= maxBatch || remaining <= 0) {
+                        break;
+                    }
+                    SeckillRequest next = requests.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                executeBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void executeBatch(List<SeckillRequest> batch) {
+        //前2个参数是订单状态有效期和支付超时时间，之后每个请求4个参数：优惠券id、用户id、订单id、租约节点
+        String[] args = new String[batch.size() * 4 + 2];
+        args[0] = RedisConstants.SECKILL_ORDER_STATUS_TTL.toString();
+        args[1] = String.valueOf(TimeUnit.MINUTES.toMillis(payTimeoutMinutes));
+        for (int i = 0; i < batch.size(); i++) {
+            SeckillRequest request = batch.get(i);
+            args[i * 4 + 2] = request.voucherId.toString();
+            args[i * 4 + 3] = request.userId.toString();
+            args[i * 4 + 4] = String.valueOf(request.orderId);
+            args[i * 4 + 5] = request.leaseNode;
+        }
+        try {
+            List<?> results = stringRedisTemplate.execute(SECKILL_SCRIPT, Collections.emptyList(), (Object[]) args);
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).future.complete(((Number) results.get(i)).longValue());
+            }
+        } catch (Exception e) {
+            //读取结果超时等错误发生时脚本可能已经在redis执行完，不能当作失败，交给订单状态查询确认结果
+            log.error("批量执行秒杀脚本失败，共{}个请求，结果以订单状态为准", batch.size(), e);
+            batch.forEach(request -> request.future.complete(UNKNOWN));
+        }
+    }
+
+    private static class SeckillRequest {
+        private final Long voucherId;
+        private final Long userId;
+        private final long orderId;
+        private final String leaseNode;
+        private final CompletableFuture<Long> future = new CompletableFuture<>();
+
+        SeckillRequest(Long voucherId, Long userId, long orderId, String leaseNode) {
+            this.voucherId = voucherId;
+            this.userId = userId;
+            this.orderId = orderId;
+            this.leaseNode = leaseNode;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+
+/**
+ * 本地的秒杀售罄登记表
+ * seckill.lua返回库存不足后，本节点直接拦截后续请求，不再请求redis，并通过redis发布订阅通知其他节点；
+ * 同时记录本节点上已经抢到的用户，重复点击在JVM内就被拒绝
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutRegistry implements MessageListener {
+
+    //每个优惠券本地最多记录的已购用户数，超过后只依赖redis判断
+    private static final int MAX_BOUGHT_USERS_PER_VOUCHER = 100_000;
+
+    private static final String SOLD_OUT = "SOLD_OUT:";
+    private static final String CLEAR = "CLEAR:";
+    private static final String RELEASE = "RELEASE:";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+
+    private final Set<Long> soldOut = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<Long, Set<Long>> boughtUsers = new ConcurrentHashMap<>();
+
+    public SeckillSoldOutRegistry(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer listenerContainer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+    }
+
+    @PostConstruct
+    private void init() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        return soldOut.contains(voucherId);
+    }
+
+    public boolean hasBought(Long voucherId, Long userId) {
+        Set<Long> users = boughtUsers.get(voucherId);
+        return users != null && users.contains(userId);
+    }
+
+    /**
+     * 标记售罄并通知所有节点
+     */
+    public void markSoldOut(Long voucherId) {
+        if (soldOut.add(voucherId)) {
+            stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, SOLD_OUT + voucherId);
+        }
+    }
+
+    /**
+     * 记录本节点上已经抢到的用户
+     */
+    public void markBought(Long voucherId, Long userId) {
+        Set<Long> users = boughtUsers.computeIfAbsent(voucherId, id -> ConcurrentHashMap.newKeySet());
+        if (users.size() < MAX_BOUGHT_USERS_PER_VOUCHER) {
+            users.add(userId);
+        }
+    }
+
+    /**
+     * 新增秒杀券、补充库存后清除所有节点上的本地标记
+     */
+    public void clear(Long voucherId) {
+        clearLocal(voucherId);
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, CLEAR + voucherId);
+    }
+
+    /**
+     * 订单取消、库存归还后通知所有节点：秒杀券不再售罄，这些用户可以重新下单
+     * 只移除这些用户，其他已购用户仍在本地拦截
+     */
+    public void release(Long voucherId, Collection<Long> userIds) {
+        if (userIds.isEmpty()) {
+            return;
+        }
+        releaseLocal(voucherId, userIds);
+        String users = userIds.stream().map(String::valueOf).collect(Collectors.joining(","));
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, RELEASE + voucherId + ":" + users);
+    }
+
+    private void releaseLocal(Long voucherId, Collection<Long> userIds) {
+        soldOut.remove(voucherId);
+        Set<Long> users = boughtUsers.get(voucherId);
+        if (users != null) {
+            users.removeAll(userIds);
+        }
+    }
+
+    private void clearLocal(Long voucherId) {
+        soldOut.remove(voucherId);
+        boughtUsers.remove(voucherId);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            if (body.startsWith(SOLD_OUT)) {
+                soldOut.add(Long.valueOf(body.substring(SOLD_OUT.length())));
+            } else if (body.startsWith(CLEAR)) {
+                clearLocal(Long.valueOf(body.substring(CLEAR.length())));
+            } else if (body.startsWith(RELEASE)) {
+                //RELEASE:{voucherId}:{userId},{userId}...
+                String[] parts = body.substring(RELEASE.length()).split(":", 2);
+                List<Long> userIds = Arrays.stream(parts[1].split(",")).map(Long::valueOf).collect(Collectors.toList());
+                releaseLocal(Long.valueOf(parts[0]), userIds);
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            log.warn("无法识别的售罄通知：{}", body);
+        }
+    }
+}
@@ -0,0 +1,494 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.function.Consumer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 秒杀库存和秒杀券信息的redis读写，库存在 seckill:stock:{voucherId}，秒杀券信息在 seckill:voucher:{voucherId}
+ * 库存可以拆成K个分片，分片数记录在秒杀券信息的shards字段，修改配置不影响已有的秒杀券；
+ * 分片key形如 seckill:stock:{1001}:0 ~ seckill:stock:{1001}:K-1，售罄标记为 seckill:soldout:{1001}，
+ * 花括号是hash tag，同一张券的分片和售罄标记在同一个slot，seckill.lua在一次调用内找兄弟分片、设置售罄标记
+ * 已下单用户有两种存储方式，记录在buyers字段：set为用户id集合；bitmap按userId分块的位图，
+ * 块key为 seckill:order:{voucherId}:bm:{userId >> 20}，用到的块号记录在 seckill:order:{voucherId}:bm，id稀疏时只分配用到的块
+ */
+@Component
+public class SeckillStockClient {
+
+    private static final DefaultRedisScript<Long> INIT_SCRIPT;
+    static {
+        INIT_SCRIPT = new DefaultRedisScript<>();
+        INIT_SCRIPT.setLocation(new ClassPathResource("seckill-init.lua"));
+        INIT_SCRIPT.setResultType(Long.class);
+    }
+    private static final DefaultRedisScript<Long> GIVE_BACK_SCRIPT;
+    static {
+        GIVE_BACK_SCRIPT = new DefaultRedisScript<>();
+        GIVE_BACK_SCRIPT.setLocation(new ClassPathResource("seckill-giveback.lua"));
+        GIVE_BACK_SCRIPT.setResultType(Long.class);
+    }
+    private static final DefaultRedisScript<Long> RECONCILE_SCRIPT;
+    static {
+        RECONCILE_SCRIPT = new DefaultRedisScript<>();
+        RECONCILE_SCRIPT.setLocation(new ClassPathResource("seckill-reconcile.lua"));
+        RECONCILE_SCRIPT.setResultType(Long.class);
+    }
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+    private static final DefaultRedisScript<Long> LEASE_RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> LEASE_RETURN_SCRIPT;
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("seckill-lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+        LEASE_RENEW_SCRIPT = new DefaultRedisScript<>();
+        LEASE_RENEW_SCRIPT.setLocation(new ClassPathResource("seckill-lease-renew.lua"));
+        LEASE_RENEW_SCRIPT.setResultType(Long.class);
+        LEASE_RETURN_SCRIPT = new DefaultRedisScript<>();
+        LEASE_RETURN_SCRIPT.setLocation(new ClassPathResource("seckill-lease-return.lua"));
+        LEASE_RETURN_SCRIPT.setResultType(Long.class);
+    }
+    //批量修改已下单用户时每批的个数
+    private static final int USER_BATCH_SIZE = 1000;
+    //位图每块的位数 2^20，每块最大128KB
+    private static final int CHUNK_BITS = 20;
+    private static final String BUYERS_SET = "set";
+    private static final String BUYERS_BITMAP = "bitmap";
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    //新建秒杀券时已下单用户的存储方式：set、bitmap，用户id连续自增时bitmap占用的内存小得多
+    @Value("${hmdp.seckill.buyer-encoding:set}")
+    private String buyerEncoding;
+    //新建秒杀券的库存分片数，1表示不分片
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards;
+    //新建秒杀券排队室每秒放行的人数，0表示不排队
+    @Value("${hmdp.seckill.room.admit-rate:0}")
+    private long admitRate;
+
+    public SeckillStockClient(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * 写入秒杀券的初始库存，并清除售罄标记和各节点的租约，一次脚本调用完成
+     * @param force 是否覆盖redis中已有的库存，不强制时库存key已存在就不修改，多个节点同时预热也不会覆盖已经扣减过的库存
+     * @return 是否写入了库存
+     */
+    public boolean initStock(Long voucherId, int stock, boolean force) {
+        String voucherKey = RedisConstants.SECKILL_VOUCHER_KEY + voucherId;
+        int previous = shardsOf(voucherId);
+        if (force) {
+            stringRedisTemplate.opsForHash().put(voucherKey, "shards", String.valueOf(Math.max(stockShards, 1)));
+        } else {
+            //没有分片数记录、但已经有单key库存的秒杀券按不分片处理，不能换一种存储方式再写一份库存
+            boolean legacy = Boolean.TRUE.equals(stringRedisTemplate.hasKey(RedisConstants.SECKILL_STOCK_KEY + voucherId));
+            stringRedisTemplate.opsForHash().putIfAbsent(voucherKey, "shards", legacy ? "1" : String.valueOf(Math.max(stockShards, 1)));
+        }
+        int shards = shardsOf(voucherId);
+        if (shards != previous) {
+            //分片数变化，删除旧的库存key和售罄标记
+            stringRedisTemplate.delete(stockKeys(voucherId, previous, soldOutKey(voucherId, previous)));
+        }
+        Long result = stringRedisTemplate.execute(INIT_SCRIPT,
+                stockKeys(voucherId, shards, RedisConstants.SECKILL_LEASE_KEY + voucherId, soldOutKey(voucherId, shards)),
+                String.valueOf(stock), force ? "1" : "0");
+        return result != null && result == 1;
+    }
+
+    /**
+     * 写入秒杀券信息，seckill.lua在同一次调用内校验状态和秒杀时间，不需要查询数据库
+     * @param status 优惠券状态，1上架
+     */
+    public void saveVoucherInfo(SeckillVoucher seckillVoucher, Integer status) {
+        Map<String, String> info = new HashMap<>();
+        info.put("status", String.valueOf(status == null ? 1 : status));
+        info.put("begin", String.valueOf(toEpochMilli(seckillVoucher.getBeginTime())));
+        info.put("end", String.valueOf(toEpochMilli(seckillVoucher.getEndTime())));
+        info.put("stock", String.valueOf(seckillVoucher.getStock()));
+        stringRedisTemplate.opsForHash().putAll(RedisConstants.SECKILL_VOUCHER_KEY + seckillVoucher.getVoucherId(), info);
+        //存储方式确定后不再修改，否则已下单用户会丢失
+        stringRedisTemplate.opsForHash().putIfAbsent(RedisConstants.SECKILL_VOUCHER_KEY + seckillVoucher.getVoucherId(), "buyers", buyerEncoding);
+        //放行速率可以按秒杀券单独修改，已有的不覆盖
+        if (admitRate > 0) {
+            stringRedisTemplate.opsForHash().putIfAbsent(RedisConstants.SECKILL_VOUCHER_KEY + seckillVoucher.getVoucherId(), "admitRate", String.valueOf(admitRate));
+        }
+    }
+
+    private long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * 秒杀券的库存分片数，没有记录时按不分片处理
+     */
+    public int shardsOf(Long voucherId) {
+        Object shards = stringRedisTemplate.opsForHash().get(RedisConstants.SECKILL_VOUCHER_KEY + voucherId, "shards");
+        return shards == null ? 1 : Math.max(Integer.parseInt(shards.toString()), 1);
+    }
+
+    /**
+     * 秒杀券在redis中的全部库存key
+     */
+    public List<String> stockKeys(Long voucherId) {
+        return stockKeys(voucherId, shardsOf(voucherId));
+    }
+
+    /**
+     * 脚本的KEYS：先是head，然后是库存key，不分片时只有一个
+     */
+    private static List<String> stockKeys(Long voucherId, int shards, String... head) {
+        List<String> keys = new ArrayList<>(head.length + shards);
+        keys.addAll(Arrays.asList(head));
+        if (shards <= 1) {
+            keys.add(RedisConstants.SECKILL_STOCK_KEY + voucherId);
+            return keys;
+        }
+        for (int i = 0; i < shards; i++) {
+            keys.add(RedisConstants.SECKILL_STOCK_KEY + "{" + voucherId + "}:" + i);
+        }
+        return keys;
+    }
+
+    /**
+     * 售罄标记key，分片时和分片用同一个hash tag
+     */
+    private static String soldOutKey(Long voucherId, int shards) {
+        return shards <= 1 ? RedisConstants.SECKILL_SOLD_OUT_KEY + voucherId
+                : RedisConstants.SECKILL_SOLD_OUT_KEY + "{" + voucherId + "}";
+    }
+
+    /**
+     * 库存key是否已经写入redis，redis被清空或故障切换后为false；分片在同一次脚本调用中写入，只看第一个
+     */
+    public boolean isStockLoaded(Long voucherId) {
+        return Boolean.TRUE.equals(stringRedisTemplate.hasKey(stockKeys(voucherId).get(0)));
+    }
+
+    /**
+     * 把已经下过单的用户写入 seckill:order:{voucherId}
+     */
+    public void addBoughtUsers(Long voucherId, Collection<Long> userIds) {
+        updateBoughtUsers(voucherId, userIds, true);
+    }
+
+    /**
+     * 已下单用户是否用位图存储
+     */
+    public boolean isBitmap(Long voucherId) {
+        return BUYERS_BITMAP.equals(stringRedisTemplate.opsForHash().get(RedisConstants.SECKILL_VOUCHER_KEY + voucherId, "buyers"));
+    }
+
+    /**
+     * 分批添加或移除已下单用户，每批一次管道，避免一次命令阻塞redis
+     */
+    private void updateBoughtUsers(Long voucherId, Collection<Long> userIds, boolean bought) {
+        if (userIds.isEmpty()) {
+            return;
+        }
+        boolean bitmap = isBitmap(voucherId);
+        String orderKey = RedisConstants.SECKILL_ORDER_KEY + voucherId;
+        List<Long> batch = new ArrayList<>(Math.min(userIds.size(), USER_BATCH_SIZE));
+        for (Long userId : userIds) {
+            batch.add(userId);
+            if (batch.size() == USER_BATCH_SIZE) {
+                updateBoughtUserBatch(orderKey, batch, bitmap, bought);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            updateBoughtUserBatch(orderKey, batch, bitmap, bought);
+        }
+    }
+
+    private void updateBoughtUserBatch(String orderKey, List<Long> userIds, boolean bitmap, boolean bought) {
+        if (!bitmap) {
+            String[] members = userIds.stream().map(String::valueOf).toArray(String[]::new);
+            if (bought) {
+                stringRedisTemplate.opsForSet().add(orderKey, members);
+            } else {
+                stringRedisTemplate.opsForSet().remove(orderKey, (Object[]) members);
+            }
+            return;
+        }
+        stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object execute(RedisOperations operations) {
+                for (Long userId : userIds) {
+                    long chunk = userId >> CHUNK_BITS;
+                    operations.opsForValue().setBit(orderKey + ":bm:" + chunk, userId & ((1 << CHUNK_BITS) - 1), bought);
+                    if (bought) {
+                        operations.opsForSet().add(orderKey + ":bm", String.valueOf(chunk));
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 归还已取消订单的库存，允许用户重新下单，并把订单移出延时队列，一次脚本调用完成
+     * 只归还还在延时队列中的订单，同一个订单重复调用不会重复归还
+     * @return 实际归还的个数
+     */
+    public long giveBack(List<VoucherOrder> orders) {
+        if (orders.isEmpty()) {
+            return 0;
+        }
+        String[] args = new String[orders.size() * 3];
+        for (int i = 0; i < orders.size(); i++) {
+            args[i * 3] = orders.get(i).getId().toString();
+            args[i * 3 + 1] = orders.get(i).getVoucherId().toString();
+            args[i * 3 + 2] = orders.get(i).getUserId().toString();
+        }
+        Long result = stringRedisTemplate.execute(GIVE_BACK_SCRIPT, Collections.emptyList(), (Object[]) args);
+        return result == null ? 0 : result;
+    }
+
+    /**
+     * 从 seckill:order:{voucherId} 中移除用户，分批执行，避免一次命令阻塞redis
+     */
+    public void removeBoughtUsers(Long voucherId, Collection<Long> userIds) {
+        updateBoughtUsers(voucherId, userIds, false);
+    }
+
+    /**
+     * 遍历已下单用户：set用SSCAN，不会一次取出整个集合；bitmap逐块读取
+     */
+    public void scanBoughtUsers(Long voucherId, Consumer<Long> consumer) {
+        if (isBitmap(voucherId)) {
+            scanBitmapUsers(RedisConstants.SECKILL_ORDER_KEY + voucherId, consumer);
+            return;
+        }
+        ScanOptions options = ScanOptions.scanOptions().count(USER_BATCH_SIZE).build();
+        try (Cursor<String> cursor = stringRedisTemplate.opsForSet().scan(RedisConstants.SECKILL_ORDER_KEY + voucherId, options)) {
+            while (cursor.hasNext()) {
+                consumer.accept(Long.valueOf(cursor.next()));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("关闭SSCAN游标失败", e);
+        }
+    }
+
+    private void scanBitmapUsers(String orderKey, Consumer<Long> consumer) {
+        Set<String> chunks = stringRedisTemplate.opsForSet().members(orderKey + ":bm");
+        if (chunks == null) {
+            return;
+        }
+        for (String chunk : chunks) {
+            byte[] key = (orderKey + ":bm:" + chunk).getBytes(StandardCharsets.UTF_8);
+            byte[] bits = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(key));
+            if (bits == null) {
+                continue;
+            }
+            long base = Long.parseLong(chunk) << CHUNK_BITS;
+            for (int i = 0; i < bits.length; i++) {
+                if (bits[i] == 0) {
+                    continue;
+                }
+                //redis位图的第0位是第一个字节的最高位
+                for (int j = 0; j < 8; j++) {
+                    if ((bits[i] & (0x80 >>> j)) != 0) {
+                        consumer.accept(base + i * 8L + j);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 已下单用户占用的redis内存（MEMORY USAGE），用于比较set和bitmap两种存储方式
+     * @return 字节数
+     */
+    public long boughtUsersMemory(Long voucherId) {
+        String orderKey = RedisConstants.SECKILL_ORDER_KEY + voucherId;
+        List<String> keys = new ArrayList<>();
+        keys.add(orderKey);
+        keys.add(orderKey + ":bm");
+        Set<String> chunks = stringRedisTemplate.opsForSet().members(orderKey + ":bm");
+        if (chunks != null) {
+            chunks.forEach(chunk -> keys.add(orderKey + ":bm:" + chunk));
+        }
+        long total = 0;
+        for (String key : keys) {
+            Object usage = stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                    connection.execute("MEMORY", "USAGE".getBytes(StandardCharsets.UTF_8), key.getBytes(StandardCharsets.UTF_8)));
+            if (usage instanceof Number) {
+                total += ((Number) usage).longValue();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 从库存key中租用一段库存，租约到期时间按redis服务器时间计算
+     * @param node 节点标识
+     * @param chunk 本次租用的个数
+     * @param ttlMillis 租约时长，到期没有续期时其他节点领取库存时会回收
+     * @return 本节点租用中的库存；-1：全部售罄；-2：库存key不存在
+     */
+    public long leaseStock(Long voucherId, String node, int chunk, long ttlMillis) {
+        Long result = stringRedisTemplate.execute(LEASE_SCRIPT, leaseKeys(voucherId),
+                node, String.valueOf(chunk), String.valueOf(ttlMillis));
+        return result == null ? 0 : result;
+    }
+
+    /**
+     * 续期租约，其他节点缺货时归还一半租用库存
+     * @return 本节点租用中的库存；-1：租约已经被回收
+     */
+    public long renewLease(Long voucherId, String node, long ttlMillis) {
+        Long result = stringRedisTemplate.execute(LEASE_RENEW_SCRIPT, leaseKeys(voucherId),
+                node, String.valueOf(ttlMillis));
+        return result == null ? -1 : result;
+    }
+
+    //租用和续期脚本的key：租约hash、售罄标记、缺货标记、库存key
+    private List<String> leaseKeys(Long voucherId) {
+        int shards = shardsOf(voucherId);
+        return stockKeys(voucherId, shards, RedisConstants.SECKILL_LEASE_KEY + voucherId, soldOutKey(voucherId, shards),
+                RedisConstants.SECKILL_LEASE_KEY + voucherId + ":demand");
+    }
+
+    /**
+     * 归还租用中没有卖出的库存
+     * @return 归还的个数
+     */
+    public long returnLease(Long voucherId, String node) {
+        int shards = shardsOf(voucherId);
+        Long result = stringRedisTemplate.execute(LEASE_RETURN_SCRIPT,
+                stockKeys(voucherId, shards, RedisConstants.SECKILL_LEASE_KEY + voucherId, soldOutKey(voucherId, shards)),
+                node);
+        return result == null ? 0 : result;
+    }
+
+    /**
+     * 是否有节点正在租用库存，此时库存key中的库存不是全部剩余库存
+     */
+    public boolean hasLeases(Long voucherId) {
+        Long size = stringRedisTemplate.opsForHash().size(RedisConstants.SECKILL_LEASE_KEY + voucherId);
+        return size != null && size > 0;
+    }
+
+    /**
+     * 把redis库存修正为目标库存，redis库存与expected不一致时（对账期间有新的秒杀）不修改
+     * @param settledOrders 数据库中已取消、库存已经计入目标库存的订单，修正的同时移出延时队列，之后不会再归还一次
+     * @return 1：已修正；0：库存有变化，未修正；-1：库存key不存在
+     */
+    public long correctStock(Long voucherId, long expected, long target, Collection<Long> settledOrders) {
+        int shards = shardsOf(voucherId);
+        List<String> keys = stockKeys(voucherId, shards, RedisConstants.SECKILL_ORDER_DELAY_KEY, soldOutKey(voucherId, shards));
+        List<String> args = new ArrayList<>(settledOrders.size() + 2);
+        args.add(String.valueOf(expected));
+        args.add(String.valueOf(target));
+        settledOrders.forEach(orderId -> args.add(orderId.toString()));
+        Long result = stringRedisTemplate.execute(RECONCILE_SCRIPT, keys, args.toArray());
+        return result == null ? 0 : result;
+    }
+
+    /**
+     * 用户是否在已下单用户中，一次管道查询一批
+     * @return 与userIds一一对应
+     */
+    public List<Boolean> isBought(Long voucherId, List<Long> userIds) {
+        if (userIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        boolean bitmap = isBitmap(voucherId);
+        String orderKey = RedisConstants.SECKILL_ORDER_KEY + voucherId;
+        List<Object> results = stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object execute(RedisOperations operations) {
+                for (Long userId : userIds) {
+                    if (bitmap) {
+                        operations.opsForValue().getBit(orderKey + ":bm:" + (userId >> CHUNK_BITS), userId & ((1 << CHUNK_BITS) - 1));
+                    } else {
+                        operations.opsForSet().isMember(orderKey, userId.toString());
+                    }
+                }
+                return null;
+            }
+        });
+        List<Boolean> bought = new ArrayList<>(results.size());
+        results.forEach(result -> bought.add(Boolean.TRUE.equals(result)));
+        return bought;
+    }
+
+    /**
+     * 筛选出仍在延时队列中的订单，一次管道查询一批
+     */
+    public List<Long> delayedOrders(List<Long> orderIds) {
+        List<Object> scores = stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object execute(RedisOperations operations) {
+                for (Long orderId : orderIds) {
+                    operations.opsForZSet().score(RedisConstants.SECKILL_ORDER_DELAY_KEY, orderId.toString());
+                }
+                return null;
+            }
+        });
+        List<Long> delayed = new ArrayList<>();
+        for (int i = 0; i < orderIds.size(); i++) {
+            if (scores.get(i) != null) {
+                delayed.add(orderIds.get(i));
+            }
+        }
+        return delayed;
+    }
+
+    /**
+     * 订单消息队列是否已经全部消费完：没有未读取的消息，也没有已读取未确认的消息
+     * 此时redis中扣减过的库存都已经在数据库中有结果
+     */
+    public boolean isOrderStreamDrained() {
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(RedisConstants.SECKILL_ORDER_STREAM))) {
+            return true;
+        }
+        StreamInfo.XInfoStream stream = stringRedisTemplate.opsForStream().info(RedisConstants.SECKILL_ORDER_STREAM);
+        return stringRedisTemplate.opsForStream().groups(RedisConstants.SECKILL_ORDER_STREAM).stream()
+                .filter(group -> RedisConstants.SECKILL_ORDER_GROUP.equals(group.groupName()))
+                .anyMatch(group -> group.pendingCount() == 0
+                        && stream.lastGeneratedId().equals(group.lastDeliveredId()));
+    }
+
+    /**
+     * redis中剩余的总库存，分片时一次MGET读取所有分片
+     */
+    public long totalStock(Long voucherId) {
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(stockKeys(voucherId));
+        long total = 0;
+        if (values != null) {
+            for (String value : values) {
+                total += value == null ? 0 : Long.parseLong(value);
+            }
+        }
+        return total;
+    }
+}
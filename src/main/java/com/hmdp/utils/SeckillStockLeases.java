@@ -0,0 +1,211 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.net.NetUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 节点本地的库存租约
+ * 节点一次从redis库存中租用一段库存，在本地用原子计数分配，本地没有库存时才访问redis领取下一段，
+ * 租约定时续期，一段时间没有请求时归还，节点宕机后租约到期，其他节点领取库存时回收，到期时间以redis服务器时间为准
+ * 其他节点租不到库存时写入缺货标记，持有租约的节点续期时归还一半没有卖出的库存
+ * 本地计数只用于提前拦截，seckill.lua扣减时还会校验节点在redis中的租用库存，租约被回收后不会超卖
+ * 抢到库存的请求仍然要执行一次seckill.lua（一人一单要跨节点校验，订单也要写入消息队列），租约省下的是失败的请求：
+ * 本节点的库存分完后，其他节点还有租用库存时在退避时间内直接拒绝，全部售罄后由售罄登记表拦截，都不再访问redis
+ */
+@Slf4j
+@Component
+public class SeckillStockLeases {
+
+    public static final int ACQUIRED = 1;
+    //本节点没有库存，其他节点可能还有
+    public static final int NONE = 0;
+    //所有节点都已售罄
+    public static final int SOLD_OUT = -1;
+    //redis中还没有库存数据
+    public static final int COLD = -2;
+
+    //节点标识，重启后是新的节点，旧租约到期后回收
+    private static final String NODE = NetUtil.getLocalHostName() + ":" + UUID.randomUUID().toString(true);
+
+    private final SeckillStockClient seckillStockClient;
+
+    @Value("${hmdp.seckill.lease.enabled:false}")
+    private boolean enabled;
+    //每次租用的库存个数
+    @Value("${hmdp.seckill.lease.chunk:50}")
+    private int chunk;
+    //租约时长，每1/3时长续期一次
+    @Value("${hmdp.seckill.lease.ttl-seconds:30}")
+    private long ttlSeconds;
+    //本节点没有租到库存、其他节点还有时，多久之后再去redis租用
+    @Value("${hmdp.seckill.lease.none-backoff-millis:1000}")
+    private long noneBackoffMillis;
+
+    //优惠券id -> 本地租约
+    private final ConcurrentMap<Long, Lease> leases = new ConcurrentHashMap<>();
+
+    public SeckillStockLeases(SeckillStockClient seckillStockClient) {
+        this.seckillStockClient = seckillStockClient;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String node() {
+        return NODE;
+    }
+
+    /**
+     * 从本地租约中分配一个库存，本地没有时从redis租用一段
+     * @return ACQUIRED、NONE、SOLD_OUT、COLD
+     */
+    public int tryAcquire(Long voucherId) {
+        Lease lease = leases.computeIfAbsent(voucherId, id -> new Lease());
+        lease.lastUsed = System.currentTimeMillis();
+        while (true) {
+            //其他节点还有租用库存，退避期间不访问redis
+            if (System.currentTimeMillis() < lease.noneUntil) {
+                return NONE;
+            }
+            long remaining = lease.remaining.get();
+            if (remaining > 0 && System.currentTimeMillis() < lease.validUntil) {
+                if (lease.remaining.compareAndSet(remaining, remaining - 1)) {
+                    return ACQUIRED;
+                }
+                continue;
+            }
+            //同一个优惠券同时只有一个线程去redis租用
+            synchronized (lease) {
+                //等锁期间其他线程已经租到库存，或者已经知道没有库存
+                if (lease.remaining.get() > 0 && System.currentTimeMillis() < lease.validUntil
+                        || System.currentTimeMillis() < lease.noneUntil) {
+                    continue;
+                }
+                long ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+                //redis按服务器时间计算到期时间，本地从发出请求时开始计时，不受两边时钟偏差影响
+                long requestedAt = System.currentTimeMillis();
+                long leased = seckillStockClient.leaseStock(voucherId, NODE, chunk, ttlMillis);
+                if (leased < 0) {
+                    return leased == -1 ? SOLD_OUT : COLD;
+                }
+                if (leased == 0) {
+                    //其他节点租用的库存可能卖不完，租约到期回收或归还之后才能再租到
+                    lease.noneUntil = System.currentTimeMillis() + noneBackoffMillis;
+                    return NONE;
+                }
+                //以redis中记录的租用库存为准，其中包含还在执行脚本的请求，多出的部分由seckill.lua改从库存key扣减
+                lease.remaining.set(leased);
+                lease.validUntil = requestedAt + ttlMillis * 2 / 3;
+            }
+        }
+    }
+
+    /**
+     * 分配的库存没有卖出（重复下单、不在秒杀时间内），放回本地租约
+     */
+    public void release(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        if (lease != null) {
+            lease.remaining.incrementAndGet();
+        }
+    }
+
+    /**
+     * 租约已经被回收，丢弃本地库存
+     */
+    public void invalidate(Long voucherId) {
+        Lease lease = leases.remove(voucherId);
+        if (lease != null) {
+            lease.remaining.set(0);
+        }
+    }
+
+    /**
+     * 租约在redis中已经卖完，本地计数清零，下一个请求重新租用
+     */
+    public void drain(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        if (lease != null) {
+            lease.remaining.set(0);
+        }
+    }
+
+    /**
+     * 定时续期，其他节点缺货时续期脚本归还一半租用库存，本地计数同步减少；一个租约时长内没有请求的优惠券（秒杀已结束或已售罄）归还没有卖出的库存
+     */
+    @Scheduled(fixedDelay = 10_000)
+    public void renewLeases() {
+        if (!enabled) {
+            return;
+        }
+        long ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        leases.forEach((voucherId, lease) -> {
+            try {
+                if (System.currentTimeMillis() - lease.lastUsed > ttlMillis) {
+                    returnLease(voucherId);
+                    return;
+                }
+                synchronized (lease) {
+                    long requestedAt = System.currentTimeMillis();
+                    long leased = seckillStockClient.renewLease(voucherId, NODE, ttlMillis);
+                    if (leased < 0) {
+                        log.warn("优惠券{}的库存租约已经被回收", voucherId);
+                        invalidate(voucherId);
+                        return;
+                    }
+                    //本地计数不能多于redis中的租用库存
+                    lease.remaining.accumulateAndGet(leased, Math::min);
+                    lease.validUntil = requestedAt + ttlMillis * 2 / 3;
+                }
+            } catch (Exception e) {
+                log.error("优惠券{}的库存租约续期失败", voucherId, e);
+            }
+        });
+    }
+
+    private void returnLease(Long voucherId) {
+        Lease lease = leases.remove(voucherId);
+        if (lease == null) {
+            return;
+        }
+        synchronized (lease) {
+            lease.remaining.set(0);
+            long returned = seckillStockClient.returnLease(voucherId, NODE);
+            log.debug("优惠券{}归还租用库存{}个", voucherId, returned);
+        }
+    }
+
+    /**
+     * 关闭时归还所有租用的库存
+     */
+    @PreDestroy
+    public void returnAll() {
+        for (Long voucherId : leases.keySet()) {
+            try {
+                returnLease(voucherId);
+            } catch (Exception e) {
+                log.error("优惠券{}归还租用库存失败，租约到期后由其他节点回收", voucherId, e);
+            }
+        }
+    }
+
+    private static class Lease {
+        private final AtomicLong remaining = new AtomicLong();
+        //本地认为租约有效的截止时间，早于redis中的到期时间
+        private volatile long validUntil;
+        private volatile long lastUsed;
+        //没有租到库存时的退避截止时间
+        private volatile long noneUntil;
+    }
+}
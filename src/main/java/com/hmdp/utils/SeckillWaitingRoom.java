@@ -0,0 +1,278 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.RandomUtil;
+import cn.hutool.crypto.SecureUtil;
+import com.hmdp.dto.Result;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 秒杀排队室
+ * 用户先领取排队号，领号时按秒杀券的放行速率算好放行时间：每个号间隔 1000 / rate 毫秒，放行时间不早于领号时间，
+ * 最多连续放行rate个（一秒的量），安静一段时间后涌进来的人也要按速率排队；放行时间确定后不需要定时任务
+ * 放行速率记录在秒杀券信息的admitRate字段，没有该字段的秒杀券不排队；seckill.lua会再校验一次放行时间，下单成功后排队号作废
+ * 领号时返回签名的排队凭证（排队号:放行时间:签名），下单时带上凭证，伪造、缺失或者还没到放行时间的凭证在本地拒绝，不访问redis
+ */
+@Slf4j
+@Component
+public class SeckillWaitingRoom {
+
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> TICKET_SCRIPT;
+    static {
+        TICKET_SCRIPT = new DefaultRedisScript<>();
+        TICKET_SCRIPT.setLocation(new ClassPathResource("waiting-room-ticket.lua"));
+        TICKET_SCRIPT.setResultType(List.class);
+    }
+    //排队号有效期
+    private static final long TICKET_TTL_SECONDS = TimeUnit.DAYS.toSeconds(1);
+    //长轮询最长等待时间
+    private static final long POLL_TIMEOUT_MILLIS = 25_000;
+    //秒杀券放行配置的本地缓存时间
+    private static final long ROOM_CACHE_MILLIS = 5_000;
+    //本地时钟可能比redis快，到点后再多等一会，避免lua校验时还没有轮到
+    private static final long CLOCK_MARGIN_MILLIS = 50;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    //排队凭证的签名密钥，多个节点要一致；不配置时使用redis中共享的随机密钥
+    @Value("${hmdp.seckill.room.secret:}")
+    private String configuredSecret;
+    private volatile byte[] secret;
+    private final ConcurrentMap<Long, Room> rooms = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "waiting-room-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SeckillWaitingRoom(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PreDestroy
+    private void destroy() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * 领取排队号
+     * @return 排队号、预计放行时间和下单时提交的排队凭证
+     */
+    public Map<String, Object> takeTicket(Long voucherId, Long userId) {
+        List<?> ticket = stringRedisTemplate.execute(TICKET_SCRIPT,
+                Arrays.asList(ticketsKey(voucherId), RedisConstants.SECKILL_ROOM_KEY + voucherId + ":seq",
+                        RedisConstants.SECKILL_ROOM_KEY + voucherId + ":tat", RedisConstants.SECKILL_VOUCHER_KEY + voucherId),
+                userId.toString(), String.valueOf(TICKET_TTL_SECONDS));
+        return ticketState(roomOf(voucherId), voucherId, userId,
+                new Ticket(((Number) ticket.get(0)).longValue(), ((Number) ticket.get(1)).longValue()));
+    }
+
+    /**
+     * 长轮询放行状态：已经放行或者在等待时间内会放行时，到放行时间再返回；否则等待超时后返回排队进度
+     */
+    public DeferredResult<Result> poll(Long voucherId, Long userId) {
+        Room room = roomOf(voucherId);
+        Object value = stringRedisTemplate.opsForHash().get(ticketsKey(voucherId), userId.toString());
+        Ticket ticket = value == null ? null : Ticket.parse(value.toString());
+        DeferredResult<Result> result = new DeferredResult<>(POLL_TIMEOUT_MILLIS + 5_000);
+        if (ticket == null && room != null) {
+            result.setResult(Result.fail("请先领取排队号"));
+            return result;
+        }
+        long waitMillis = room == null ? 0 : ticket.admitAt + CLOCK_MARGIN_MILLIS - System.currentTimeMillis();
+        if (waitMillis <= 0) {
+            result.setResult(Result.ok(ticketState(room, voucherId, userId, ticket)));
+        } else {
+            //放行时间是确定的，到点再返回，等待期间不占用tomcat线程，也不访问redis
+            timer.schedule(() -> result.setResult(Result.ok(ticketState(room, voucherId, userId, ticket))),
+                    Math.min(waitMillis, POLL_TIMEOUT_MILLIS), TimeUnit.MILLISECONDS);
+        }
+        return result;
+    }
+
+    /**
+     * 本地判断排队凭证是否已经放行，凭证缺失、签名不对或者还没到放行时间的请求直接拒绝，不会访问redis
+     * 放行时间取凭证中的放行时间和第position个号最早放行时间中较晚的一个，seckill.lua还会用redis中记录的放行时间再校验
+     */
+    public boolean mayEnter(Long voucherId, Long userId, String token) {
+        Room room = roomOf(voucherId);
+        if (room == null) {
+            return true;
+        }
+        Ticket ticket = Ticket.verify(token, secret(), voucherId, userId);
+        return ticket != null
+                && System.currentTimeMillis() >= Math.max(ticket.admitAt, earliestAdmitAt(room.begin, room.rate, ticket.position));
+    }
+
+    private Map<String, Object> ticketState(Room room, Long voucherId, Long userId, Ticket ticket) {
+        Map<String, Object> state = new HashMap<>();
+        state.put("position", ticket == null ? null : ticket.position);
+        if (room == null) {
+            state.put("admitted", true);
+            return state;
+        }
+        state.put("ticket", ticket.sign(secret(), voucherId, userId));
+        long now = System.currentTimeMillis();
+        state.put("admitted", now >= ticket.admitAt);
+        state.put("admitAt", ticket.admitAt);
+        state.put("ahead", aheadOf(ticket.admitAt, room.rate, now));
+        return state;
+    }
+
+    /**
+     * 第position个号最早的放行时间（毫秒时间戳）：前rate个在秒杀开始时放行，之后每个号间隔 1000 / rate 毫秒，
+     * 所有的号都在开始前领取时正好是这个时间，领号晚的放行时间更晚
+     */
+    static long earliestAdmitAt(long begin, long rate, long position) {
+        if (position <= rate) {
+            return begin;
+        }
+        return begin + ((position - rate) * 1000 + rate - 1) / rate;
+    }
+
+    /**
+     * 距离放行时间还有多少人排在前面，按放行速率估算
+     */
+    static long aheadOf(long admitAt, long rate, long now) {
+        return Math.max(0, (admitAt - now) * rate / 1000);
+    }
+
+    /**
+     * 秒杀券的放行配置，没有配置放行速率时返回null，表示不排队
+     * 本地缓存过期后只有一个线程去redis重新加载，其他线程继续使用旧的配置
+     */
+    private Room roomOf(Long voucherId) {
+        Room room = rooms.get(voucherId);
+        if (room != null && (System.currentTimeMillis() - room.loadedAt < ROOM_CACHE_MILLIS
+                || !room.reloading.compareAndSet(false, true))) {
+            return room.rate > 0 ? room : null;
+        }
+        try {
+            room = loadRoom(voucherId);
+        } catch (RuntimeException e) {
+            if (room == null) {
+                throw e;
+            }
+            log.error("加载秒杀券{}的放行配置失败，继续使用本地缓存", voucherId, e);
+            room.reloading.set(false);
+            return room.rate > 0 ? room : null;
+        }
+        return room.rate > 0 ? room : null;
+    }
+
+    private Room loadRoom(Long voucherId) {
+        List<Object> info = stringRedisTemplate.opsForHash().multiGet(RedisConstants.SECKILL_VOUCHER_KEY + voucherId,
+                Arrays.asList("begin", "admitRate"));
+        long begin = info.get(0) == null ? 0 : Long.parseLong(info.get(0).toString());
+        long rate = info.get(1) == null ? 0 : Long.parseLong(info.get(1).toString());
+        Room room = new Room(begin, rate);
+        rooms.put(voucherId, room);
+        return room;
+    }
+
+    /**
+     * 排队凭证的签名密钥，没有配置时所有节点共用redis中的随机密钥，只在第一次使用时读取一次
+     */
+    private byte[] secret() {
+        byte[] key = secret;
+        if (key != null) {
+            return key;
+        }
+        String value = configuredSecret;
+        if (value == null || value.isEmpty()) {
+            String secretKey = RedisConstants.SECKILL_ROOM_KEY + "secret";
+            stringRedisTemplate.opsForValue().setIfAbsent(secretKey, RandomUtil.randomString(32));
+            value = stringRedisTemplate.opsForValue().get(secretKey);
+        }
+        key = value.getBytes(StandardCharsets.UTF_8);
+        secret = key;
+        return key;
+    }
+
+    private String ticketsKey(Long voucherId) {
+        return RedisConstants.SECKILL_ROOM_KEY + voucherId + ":tickets";
+    }
+
+    /**
+     * 排队号，redis中记录为 排队号:放行时间，返回给客户端的凭证为 排队号:放行时间:签名
+     */
+    static class Ticket {
+        final long position;
+        //放行时间（毫秒时间戳）
+        final long admitAt;
+
+        Ticket(long position, long admitAt) {
+            this.position = position;
+            this.admitAt = admitAt;
+        }
+
+        static Ticket parse(String value) {
+            int separator = value.indexOf(':');
+            return new Ticket(Long.parseLong(value.substring(0, separator)), Long.parseLong(value.substring(separator + 1)));
+        }
+
+        /**
+         * 签名覆盖优惠券、用户、排队号和放行时间，凭证不能改号、改时间，也不能给别的用户或优惠券使用
+         */
+        String sign(byte[] secret, Long voucherId, Long userId) {
+            String data = position + ":" + admitAt;
+            return data + ":" + SecureUtil.hmacSha256(secret).digestHex(voucherId + ":" + userId + ":" + data);
+        }
+
+        /**
+         * 校验客户端提交的凭证
+         * @return 凭证缺失、格式错误或者签名不对时返回null
+         */
+        static Ticket verify(String token, byte[] secret, Long voucherId, Long userId) {
+            if (token == null) {
+                return null;
+            }
+            int separator = token.lastIndexOf(':');
+            if (separator <= 0 || token.indexOf(':') == separator) {
+                return null;
+            }
+            Ticket ticket;
+            try {
+                ticket = parse(token.substring(0, separator));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            byte[] expected = ticket.sign(secret, voucherId, userId).getBytes(StandardCharsets.UTF_8);
+            return MessageDigest.isEqual(expected, token.getBytes(StandardCharsets.UTF_8)) ? ticket : null;
+        }
+    }
+
+    private static class Room {
+        //秒杀开始时间
+        private final long begin;
+        //每秒放行的人数
+        private final long rate;
+        private final long loadedAt = System.currentTimeMillis();
+        //缓存过期后是否已经有线程在重新加载
+        private final AtomicBoolean reloading = new AtomicBoolean();
+
+        Room(long begin, long rate) {
+            this.begin = begin;
+            this.rate = rate;
+        }
+    }
+}
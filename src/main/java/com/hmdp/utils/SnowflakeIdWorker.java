@@ -0,0 +1,230 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * 本地生成id，不访问redis
+ * id=符号位1+时间戳31+标记位1+workerId 9+序列号22，高32位与RedisIdWorker一样是秒级时间戳，
+ * 按同一个基准（本地时间按UTC换算）取秒数，可以按时间范围换算id范围；
+ * 标记位固定为1，RedisIdWorker的序列号这一位固定为0，同一个业务前缀两种方式混用时id也不会重复
+ * workerId从redis租用并定时续期，同一时刻每个workerId只属于一个实例
+ */
+@Slf4j
+@Component
+public class SnowflakeIdWorker {
+
+    /**
+     * 开始时间戳，与RedisIdWorker一致
+     */
+    private static final long BEGIN_TIMESTAMP = 1640995200L;
+    private static final int TIMESTAMP_SHIFT = 32;
+    private static final int WORKER_BITS = 9;
+    private static final int SEQUENCE_BITS = 22;
+    //低32位的最高位，区分雪花id和RedisIdWorker的id
+    private static final long SNOWFLAKE_FLAG = 1L << (WORKER_BITS + SEQUENCE_BITS);
+    private static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+    //一秒内序列号用完时最多向后借用的秒数，超过后等待时钟追上
+    private static final long MAX_BORROW_SECONDS = 5;
+
+    private static final String WORKER_KEY_PREFIX = "id:worker:";
+    private static final String WORKER_LAST_KEY_PREFIX = "id:worker:last:";
+    private static final long LEASE_TTL_SECONDS = 30;
+    private static final long RENEW_INTERVAL_MILLIS = 10_000;
+    //本地认为租约有效的时长：从发出请求时算起，比redis中的过期时间提前一个续期间隔，
+    //旧持有者一定在key过期、新持有者拿到workerId之前停止分配
+    private static final long LEASE_VALID_MILLIS = TimeUnit.SECONDS.toMillis(LEASE_TTL_SECONDS) - RENEW_INTERVAL_MILLIS;
+    private static final String INSTANCE_ID = UUID.randomUUID().toString(true);
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("worker-renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    //当前时间，秒
+    private final LongSupplier clock;
+    //最近一次分配的 时间戳 << SEQUENCE_BITS | 序列号，用CAS更新，分配id不加锁
+    private final AtomicLong state = new AtomicLong();
+    private volatile long workerId = -1;
+    //租约在本地的有效期，过期后没有重新确认租约之前不分配id
+    private volatile long validUntil;
+
+    @Autowired
+    public SnowflakeIdWorker(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.clock = SnowflakeIdWorker::currentSecond;
+    }
+
+    /**
+     * 使用固定的workerId，不访问redis
+     */
+    SnowflakeIdWorker(long workerId, LongSupplier clock) {
+        this.stringRedisTemplate = null;
+        this.clock = clock;
+        this.workerId = workerId;
+    }
+
+    /**
+     * 当前时间的秒数，与RedisIdWorker一样把本地时间按UTC换算
+     */
+    static long currentSecond() {
+        return LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
+    }
+
+    public long nextId() {
+        long worker = ensureWorkerId();
+        while (true) {
+            long prev = state.get();
+            long prevSecond = prev >>> SEQUENCE_BITS;
+            long now = clock.getAsLong() - BEGIN_TIMESTAMP;
+            long next;
+            if (now > prevSecond) {
+                next = now << SEQUENCE_BITS;
+            } else if ((prev & MAX_SEQUENCE) < MAX_SEQUENCE) {
+                //同一秒内，或者时钟回拨后继续沿用上次的时间戳，序列号递增，不会重复
+                next = prev + 1;
+            } else {
+                //序列号用完，借用下一秒
+                if (prevSecond + 1 - now > MAX_BORROW_SECONDS) {
+                    waitForClock();
+                    continue;
+                }
+                next = (prevSecond + 1) << SEQUENCE_BITS;
+            }
+            if (state.compareAndSet(prev, next)) {
+                return (next >>> SEQUENCE_BITS) << TIMESTAMP_SHIFT | SNOWFLAKE_FLAG | worker << SEQUENCE_BITS | (next & MAX_SEQUENCE);
+            }
+        }
+    }
+
+    private void waitForClock() {
+        try {
+            TimeUnit.MILLISECONDS.sleep(10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待时钟时被中断", e);
+        }
+    }
+
+    private long ensureWorkerId() {
+        long worker = workerId;
+        if (worker >= 0 && (stringRedisTemplate == null || System.currentTimeMillis() < validUntil)) {
+            return worker;
+        }
+        return leaseWorkerId();
+    }
+
+    /**
+     * 租约在本地过期时先续期原来的workerId；续期失败时从随机位置开始找一个空闲的workerId，
+     * 找到后从上一个持有者用到的时间之后开始分配；redis不可用时抛出异常，不分配无法确认租约的id
+     */
+    private synchronized long leaseWorkerId() {
+        if (workerId >= 0 && System.currentTimeMillis() < validUntil) {
+            return workerId;
+        }
+        if (workerId >= 0 && renew(workerId, usedUntil())) {
+            return workerId;
+        }
+        workerId = -1;
+        int start = ThreadLocalRandom.current().nextInt((int) MAX_WORKER_ID + 1);
+        for (int i = 0; i <= MAX_WORKER_ID; i++) {
+            long id = (start + i) & MAX_WORKER_ID;
+            //有效期从发出请求时算起，redis中的过期时间一定不早于它
+            long requestedAt = System.currentTimeMillis();
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(WORKER_KEY_PREFIX + id, INSTANCE_ID, LEASE_TTL_SECONDS, TimeUnit.SECONDS);
+            if (!Boolean.TRUE.equals(success)) {
+                continue;
+            }
+            //上一个持有者可能时钟更快，从它用到的时间之后开始，避免生成重复id
+            String last = stringRedisTemplate.opsForValue().get(WORKER_LAST_KEY_PREFIX + id);
+            if (last != null) {
+                long lastState = (Long.parseLong(last) + 1) << SEQUENCE_BITS;
+                state.accumulateAndGet(lastState, Math::max);
+            }
+            validUntil = requestedAt + LEASE_VALID_MILLIS;
+            workerId = id;
+            log.info("租用workerId={}", id);
+            return id;
+        }
+        throw new IllegalStateException("没有空闲的workerId");
+    }
+
+    /**
+     * 定时续期租约
+     */
+    @Scheduled(fixedDelay = RENEW_INTERVAL_MILLIS)
+    public synchronized void renewLease() {
+        long id = workerId;
+        if (id < 0 || stringRedisTemplate == null) {
+            return;
+        }
+        try {
+            renew(id, usedUntil());
+        } catch (Exception e) {
+            //续期失败时本地有效期不延长，到期后停止分配
+            log.error("workerId={}续期失败", id, e);
+        }
+    }
+
+    /**
+     * 本次续期后的有效期内最多能用到的时间戳，包括向后借用的秒数，下一个持有者从这之后开始
+     */
+    private long usedUntil() {
+        long validSecond = clock.getAsLong() - BEGIN_TIMESTAMP + LEASE_VALID_MILLIS / 1000 + 1;
+        return Math.max(state.get() >>> SEQUENCE_BITS, validSecond) + MAX_BORROW_SECONDS;
+    }
+
+    /**
+     * 续期租约并记录用到的时间，租约已经丢失时返回false，下次生成id时重新租用
+     */
+    private boolean renew(long id, long usedUntil) {
+        long requestedAt = System.currentTimeMillis();
+        Long result = stringRedisTemplate.execute(RENEW_SCRIPT,
+                Arrays.asList(WORKER_KEY_PREFIX + id, WORKER_LAST_KEY_PREFIX + id),
+                INSTANCE_ID, String.valueOf(LEASE_TTL_SECONDS), String.valueOf(usedUntil));
+        if (result != null && result == 1) {
+            validUntil = requestedAt + LEASE_VALID_MILLIS;
+            return true;
+        }
+        log.error("workerId={}的租约已经丢失", id);
+        workerId = -1;
+        return false;
+    }
+
+    @PreDestroy
+    public synchronized void releaseLease() {
+        long id = workerId;
+        if (id < 0 || stringRedisTemplate == null) {
+            return;
+        }
+        //先停止分配，再记录实际用到的时间后释放，下一个持有者从这之后开始
+        validUntil = 0;
+        renew(id, (state.get() >>> SEQUENCE_BITS) + MAX_BORROW_SECONDS);
+        stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(WORKER_KEY_PREFIX + id), INSTANCE_ID);
+    }
+}
@@ -0,0 +1,213 @@
+package com.hmdp.utils;
+
+import com.hmdp.mapper.VoucherOrderMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * 订单按月分表：tb_voucher_order_yyyyMM，月份取自订单id中的时间戳
+ * 通过ThreadLocal指定当前线程访问的分表，DynamicTableNameInnerInterceptor在执行sql时把tb_voucher_order替换为分表名，
+ * 没有指定时访问原表；原表保留开启分表之前的订单
+ */
+@Slf4j
+@Component
+public class VoucherOrderPartitions {
+
+    public static final String TABLE = "tb_voucher_order";
+    private static final DateTimeFormatter MONTH_FORMATTER = DateTimeFormatter.ofPattern("yyyyMM");
+    //本地没有记录的分表，最多每隔多久到数据库查一次
+    private static final long REFRESH_INTERVAL_MILLIS = 60_000;
+    //当前线程访问的分表后缀，为空时访问原表
+    private static final ThreadLocal<String> CURRENT = new ThreadLocal<>();
+
+    private final VoucherOrderMapper voucherOrderMapper;
+
+    @Value("${hmdp.order.partition.enabled:false}")
+    private boolean enabled;
+
+    //已经建好的分表后缀
+    private final Set<String> existing = ConcurrentHashMap.newKeySet();
+    //上次从数据库加载分表的时间
+    private volatile long lastRefresh;
+
+    public VoucherOrderPartitions(VoucherOrderMapper voucherOrderMapper) {
+        this.voucherOrderMapper = voucherOrderMapper;
+    }
+
+    /**
+     * 供DynamicTableNameInnerInterceptor调用，返回当前线程要访问的表名
+     */
+    public static String routeTable(String tableName) {
+        String suffix = CURRENT.get();
+        return suffix == null ? tableName : tableName + "_" + suffix;
+    }
+
+    /**
+     * 订单所在的分表后缀，未开启分表时为null（原表）
+     */
+    public String partitionOf(long orderId) {
+        return enabled ? monthOf(orderId).format(MONTH_FORMATTER) : null;
+    }
+
+    /**
+     * 订单id中的时间所在的月份，写入和查询都按它分表
+     */
+    private static YearMonth monthOf(long orderId) {
+        return YearMonth.from(RedisIdWorker.timeOf(orderId));
+    }
+
+    /**
+     * 按订单所在的分表分组
+     */
+    public <T> Map<String, List<T>> groupByPartition(Collection<T> items, ToLongFunction<T> idOf) {
+        Map<String, List<T>> groups = new LinkedHashMap<>();
+        for (T item : items) {
+            groups.computeIfAbsent(partitionOf(idOf.applyAsLong(item)), k -> new ArrayList<>()).add(item);
+        }
+        return groups;
+    }
+
+    /**
+     * 在指定分表上执行，执行完恢复原来的分表
+     */
+    public <T> T callIn(String partition, Supplier<T> action) {
+        String previous = CURRENT.get();
+        set(partition);
+        try {
+            return action.get();
+        } finally {
+            set(previous);
+        }
+    }
+
+    public void runIn(String partition, Runnable action) {
+        callIn(partition, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    private void set(String partition) {
+        if (partition == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(partition);
+        }
+    }
+
+    /**
+     * 时间范围覆盖的分表，按订单id的时间换算，与写入订单时的分表一致
+     * @return 分表后缀，null表示原表
+     */
+    public List<String> partitionsBetween(LocalDateTime begin, LocalDateTime end) {
+        //id只精确到秒，结束时间向后多取一秒
+        return partitionsBetween(RedisIdWorker.minIdOf(begin), RedisIdWorker.minIdOf(end.plusSeconds(1)));
+    }
+
+    /**
+     * 订单id范围 [minId, endId) 覆盖的分表，按时间先后排列，只包含已经建好的分表，原表总在最前
+     * 月份和写入时一样由订单id换算，本地没有记录的分表到数据库中再查一次，其他节点新建的分表也能查到
+     * @return 分表后缀，null表示原表
+     */
+    public List<String> partitionsBetween(long minId, long endId) {
+        List<String> partitions = new ArrayList<>();
+        partitions.add(null);
+        if (!enabled || endId <= minId) {
+            return partitions;
+        }
+        YearMonth first = monthOf(Math.max(minId, 0));
+        YearMonth last = monthOf(Math.max(endId - 1, 0));
+        boolean refreshed = false;
+        for (YearMonth month = first; !month.isAfter(last); month = month.plusMonths(1)) {
+            String suffix = month.format(MONTH_FORMATTER);
+            if (!existing.contains(suffix) && !refreshed) {
+                refreshed = refreshExisting();
+            }
+            if (existing.contains(suffix)) {
+                partitions.add(suffix);
+            }
+        }
+        return partitions;
+    }
+
+    /**
+     * 从数据库重新加载已有的分表，两次加载至少间隔REFRESH_INTERVAL_MILLIS，查询没有分表的月份不会每次都访问数据库
+     * @return 是否加载了
+     */
+    private boolean refreshExisting() {
+        long now = System.currentTimeMillis();
+        if (now - lastRefresh < REFRESH_INTERVAL_MILLIS) {
+            return false;
+        }
+        lastRefresh = now;
+        for (String table : voucherOrderMapper.listPartitionTables()) {
+            existing.add(table.substring(TABLE.length() + 1));
+        }
+        return true;
+    }
+
+    /**
+     * 确保订单所在的分表已经建好，DDL会隐式提交事务，要在事务外调用
+     */
+    public void ensureTablesFor(Collection<Long> orderIds) {
+        if (!enabled) {
+            return;
+        }
+        for (Long orderId : orderIds) {
+            ensureTable(partitionOf(orderId));
+        }
+    }
+
+    private void ensureTable(String suffix) {
+        if (existing.contains(suffix)) {
+            return;
+        }
+        voucherOrderMapper.createPartitionTable(TABLE + "_" + suffix);
+        existing.add(suffix);
+        log.info("订单分表{}_{}已创建", TABLE, suffix);
+    }
+
+    /**
+     * 启动时加载已有的分表，并提前建好本月和下个月的分表
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void init() {
+        if (enabled) {
+            createUpcoming();
+        }
+    }
+
+    /**
+     * 每天检查一次，下个月的分表在月初之前就已经建好，写订单时不需要建表
+     */
+    @Scheduled(cron = "0 0 1 * * ?")
+    public void createUpcoming() {
+        if (!enabled) {
+            return;
+        }
+        //其他节点建的分表也要能查到
+        lastRefresh = 0;
+        refreshExisting();
+        //当前月份按订单id换算，与写入订单时的分表一致
+        YearMonth now = monthOf(RedisIdWorker.minIdOf(LocalDateTime.now()));
+        ensureTable(now.format(MONTH_FORMATTER));
+        ensureTable(now.plusMonths(1).format(MONTH_FORMATTER));
+    }
+}
@@ -0,0 +1,16 @@
+-- 脚本中读取了服务器时间，按命令效果复制（redis 5以上默认开启）
+redis.replicate_commands()
+
+-- 从延时队列中领取已经到期的订单
+-- KEYS[1]：延时队列zset，member为订单id，score为支付截止时间（毫秒时间戳）
+-- ARGV[1]：最多领取的个数，ARGV[2]：租约时长（毫秒）
+-- 截止时间由seckill.lua按redis服务器时间写入，这里也以redis服务器时间判断是否到期
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+local ids = redis.call('zrangebyscore', KEYS[1], '-inf', now, 'LIMIT', 0, ARGV[1])
+-- 不直接删除，把截止时间推后一个租约，处理完再删除；节点处理中途宕机时，租约到期后会被重新领取
+local leaseUntil = now + tonumber(ARGV[2])
+for i, id in ipairs(ids) do
+    redis.call('zadd', KEYS[1], leaseUntil, id)
+end
+return ids
@@ -0,0 +1,37 @@
+-- 归还已取消订单占用的库存，每3个参数为一组：订单id、优惠券id、用户id
+-- 订单还在延时队列中才归还并移出队列，同一个订单重复调用只归还一次，数据库已取消、redis归还失败时可以放心重试
+-- 返回：实际归还的个数
+local returned = 0
+for i = 1, #ARGV, 3 do
+    local orderId = ARGV[i]
+    local voucherId = ARGV[i + 1]
+    local userId = ARGV[i + 2]
+    -- 1.移出延时队列，已经不在队列中说明归还过
+    if(redis.call('zrem', 'seckill:delay:orders', orderId) == 1) then
+        -- 2.库存key和已下单用户的存储方式，分片时归还到用户对应的分片
+        local info = redis.call('hmget', 'seckill:voucher:' .. voucherId, 'buyers', 'shards')
+        local buyers = info[1]
+        local shards = tonumber(info[2] or '1')
+        local stockKey = 'seckill:stock:' .. voucherId
+        local soldOutKey = 'seckill:soldout:' .. voucherId
+        if(shards > 1) then
+            stockKey = 'seckill:stock:{' .. voucherId .. '}:' .. (tonumber(userId) % shards)
+            soldOutKey = 'seckill:soldout:{' .. voucherId .. '}'
+        end
+        -- 3.归还库存，key不存在说明还没有预热，预热时会从数据库加载归还后的库存
+        if(redis.call('exists', stockKey) == 1) then
+            redis.call('incrby', stockKey, 1)
+        end
+        -- 4.用户可以重新下单
+        if(buyers == 'bitmap') then
+            local uid = tonumber(userId)
+            redis.call('setbit', 'seckill:order:' .. voucherId .. ':bm:' .. math.floor(uid / 1048576), uid % 1048576, 0)
+        else
+            redis.call('srem', 'seckill:order:' .. voucherId, userId)
+        end
+        -- 5.有库存了，清除售罄标记
+        redis.call('del', soldOutKey)
+        returned = returned + 1
+    end
+end
+return returned
@@ -0,0 +1,22 @@
+-- 写入秒杀券的初始库存
+-- KEYS[1]：租约hash，KEYS[2]：售罄标记key，KEYS[3..]：库存key，分片时每个分片一个
+-- ARGV[1]：库存，ARGV[2]：1表示强制覆盖已有库存
+-- 返回：1：已写入；0：库存key已存在，没有修改
+-- 1.库存key已经存在时，redis中的库存可能比数据库新（订单还在队列中），不强制时不覆盖
+if(ARGV[2] ~= '1' and redis.call('exists', KEYS[3]) == 1) then
+    return 0
+end
+-- 2.写入库存并清除售罄标记，分片时库存平均分到每个分片，余数分给前面的分片
+local stock = tonumber(ARGV[1])
+local shards = #KEYS - 2
+for i = 0, shards - 1 do
+    local shardStock = math.floor(stock / shards)
+    if(i < stock % shards) then
+        shardStock = shardStock + 1
+    end
+    redis.call('set', KEYS[i + 3], shardStock)
+end
+redis.call('del', KEYS[2])
+-- 3.重新写入库存后，各节点之前租用的库存作废，节点下次扣减时发现租约不存在会丢弃本地库存
+redis.call('del', KEYS[1])
+return 1
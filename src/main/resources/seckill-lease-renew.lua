@@ -0,0 +1,28 @@
+-- 续期节点的库存租约，其他节点缺货时归还一半租用库存
+-- KEYS[1]：租约hash，KEYS[2]：售罄标记key，KEYS[3]：缺货标记key，KEYS[4..]：库存key，归还到第一个分片
+-- ARGV[1]：节点，ARGV[2]：租约时长（毫秒）
+-- 返回：本节点租用中的库存；-1：租约已经被回收
+
+-- 租约到期时间以redis服务器时间为准，按命令效果复制
+redis.replicate_commands()
+
+local node = ARGV[1]
+local units = redis.call('hget', KEYS[1], node)
+if(not units) then
+    return -1
+end
+units = tonumber(units)
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+redis.call('hset', KEYS[1], node .. ':expire', now + tonumber(ARGV[2]))
+
+-- 其他节点缺货，归还一半没有卖出的库存，让它们能租到
+local wanting = redis.call('get', KEYS[3])
+if(wanting and wanting ~= node and units > 1) then
+    local give = math.floor(units / 2)
+    redis.call('hincrby', KEYS[1], node, -give)
+    redis.call('incrby', KEYS[4], give)
+    redis.call('del', KEYS[2])
+    units = units - give
+end
+return units
@@ -0,0 +1,9 @@
+-- 节点归还没有卖出的租用库存
+-- KEYS[1]：租约hash，KEYS[2]：售罄标记key，KEYS[3..]：库存key，归还到第一个分片，ARGV[1]：节点
+local units = tonumber(redis.call('hget', KEYS[1], ARGV[1]) or '0')
+if(units > 0) then
+    redis.call('incrby', KEYS[3], units)
+    redis.call('del', KEYS[2])
+end
+redis.call('hdel', KEYS[1], ARGV[1], ARGV[1] .. ':expire')
+return units
@@ -0,0 +1,67 @@
+-- 节点从redis库存中租用一段库存，在本地分配
+-- KEYS[1]：租约hash，KEYS[2]：售罄标记key，KEYS[3]：缺货标记key，KEYS[4..]：库存key，分片时每个分片一个
+--   租约hash：{节点} -> 该节点租用后还没有卖出的库存，{节点}:expire -> 租约到期时间（毫秒，redis服务器时间）
+--   缺货标记：本节点没有租到库存、其他节点还有租用库存时写入，其他节点续期时归还一部分租用库存
+-- ARGV[1]：节点，ARGV[2]：本次租用的个数，ARGV[3]：租约时长（毫秒）
+-- 返回：本节点租用中的库存；-1：全部售罄；-2：库存key不存在
+
+-- 租约到期时间以redis服务器时间为准，不受各节点时钟偏差影响，按命令效果复制
+redis.replicate_commands()
+
+local leaseKey = KEYS[1]
+local soldOutKey = KEYS[2]
+local demandKey = KEYS[3]
+local node = ARGV[1]
+local chunk = tonumber(ARGV[2])
+local ttl = tonumber(ARGV[3])
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+-- 1.库存key不存在，交给预热处理
+if(redis.call('exists', KEYS[4]) == 0) then
+    return -2
+end
+
+-- 2.回收已经过期的租约，节点宕机后它没有卖出的库存回到库存key
+local fields = redis.call('hgetall', leaseKey)
+for i = 1, #fields, 2 do
+    local field = fields[i]
+    if(string.sub(field, -7) == ':expire' and tonumber(fields[i + 1]) < now) then
+        local owner = string.sub(field, 1, -8)
+        local units = tonumber(redis.call('hget', leaseKey, owner) or '0')
+        if(units > 0) then
+            redis.call('incrby', KEYS[4], units)
+        end
+        redis.call('hdel', leaseKey, owner, field)
+    end
+end
+
+-- 3.从库存key领取库存，分片时依次从每个分片领取，直到领够
+local taken = 0
+for i = 4, #KEYS do
+    if(taken >= chunk) then
+        break
+    end
+    local part = math.max(math.min(tonumber(redis.call('get', KEYS[i]) or '0'), chunk - taken), 0)
+    if(part > 0) then
+        redis.call('incrby', KEYS[i], -part)
+        taken = taken + part
+    end
+end
+local mine = redis.call('hincrby', leaseKey, node, taken)
+redis.call('hset', leaseKey, node .. ':expire', now + ttl)
+
+-- 4.本节点没有库存，其他节点的租约也都卖完了，才是真正售罄
+if(mine <= 0) then
+    local vals = redis.call('hgetall', leaseKey)
+    for i = 1, #vals, 2 do
+        if(string.sub(vals[i], -7) ~= ':expire' and tonumber(vals[i + 1]) > 0) then
+            --其他节点还有租用库存，写入缺货标记，它们续期时归还一部分
+            redis.call('set', demandKey, node, 'px', ttl)
+            return 0
+        end
+    end
+    redis.call('set', soldOutKey, '1')
+    return -1
+end
+return mine
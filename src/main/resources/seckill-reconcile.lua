@@ -0,0 +1,37 @@
+-- 用数据库库存修正redis库存，只有redis库存在对账期间没有变化时才修改
+-- KEYS[1]：延时队列zset，KEYS[2]：售罄标记key，KEYS[3..]：库存key，分片时每个分片一个
+-- ARGV[1]：对账时读到的redis总库存，ARGV[2]：修正后的库存，ARGV[3..]：数据库中已取消、还在延时队列中的订单id
+-- 1.库存key不存在，交给预热处理
+local values = redis.call('mget', unpack(KEYS, 3))
+local total = 0
+for i = 1, #values do
+    if(not values[i]) then
+        return -1
+    end
+    total = total + tonumber(values[i])
+end
+-- 2.对账期间有新的秒杀扣减了库存，放弃本次修正
+if(total ~= tonumber(ARGV[1])) then
+    return 0
+end
+-- 3.修正库存，分片时平均分到每个分片
+local target = tonumber(ARGV[2])
+local shards = #KEYS - 2
+for i = 0, shards - 1 do
+    local shardStock = math.floor(target / shards)
+    if(i < target % shards) then
+        shardStock = shardStock + 1
+    end
+    redis.call('set', KEYS[i + 3], shardStock)
+end
+-- 4.更新售罄标记
+if(target > 0) then
+    redis.call('del', KEYS[2])
+else
+    redis.call('set', KEYS[2], '1')
+end
+-- 5.已取消订单的库存已经包含在数据库库存中，移出延时队列，取消任务不会再归还一次
+for i = 3, #ARGV do
+    redis.call('zrem', KEYS[1], ARGV[i])
+end
+return 1
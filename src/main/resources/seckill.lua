@@ -1,28 +1,169 @@
+-- 脚本中读取了服务器时间，按命令效果复制（redis 5以上默认开启）
+redis.replicate_commands()
+
 -- 1.参数列表
--- 1.1.优惠券id
-local voucherId = ARGV[1]
--- 1.2.用户id
-local userId = ARGV[2]
+-- 1.1.订单状态记录的有效期（秒）
+local statusTtl = ARGV[1]
+-- 1.2.未支付订单自动取消的超时时间（毫秒）
+local payTimeout = tonumber(ARGV[2])
+-- 1.3.之后每4个参数为一组秒杀请求，可以一次传入多组，返回每组的结果：优惠券id、用户id、订单id、租约节点
+--     租约节点不为空时，库存已经由该节点租用到本地，脚本不再扣减库存key，只扣减该节点在租约hash中的库存
 
--- 2.数据key
--- 2.1.库存key
-local stockKey = 'seckill:stock:' .. voucherId
--- 2.2.订单key
-local orderKey = 'seckill:order:' .. voucherId
+-- 2.当前时间，以redis服务器为准
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
 
 -- 3.脚本业务
--- 3.1.判断库存是否充足 get stockKey
-if(tonumber(redis.call('get',stockKey))<= 0) then
-    --3.2.库存不足，返回1
-    return 1
+local function seckill(voucherId, userId, orderId, leaseNode)
+    -- 3.1.数据key
+    -- 3.1.1.订单key
+    local orderKey = 'seckill:order:' .. voucherId
+    -- 3.1.2.秒杀券信息key，hash：status、begin、end（毫秒时间戳）、stock、buyers（已下单用户的存储方式）、
+    --       admitRate（排队室每秒放行人数）、shards（库存分片数）
+    local voucherKey = 'seckill:voucher:' .. voucherId
+    local info = redis.call('hmget',voucherKey,'status','begin','end','buyers','admitRate','shards')
+    -- 3.1.3.库存key和售罄标记key，不分片时为 seckill:stock:1001、seckill:soldout:1001；
+    --       分片时为 seckill:stock:{1001}:0 ~ seckill:stock:{1001}:K-1、seckill:soldout:{1001}，花括号是hash tag，都在同一个slot
+    local shards = tonumber(info[6] or '1')
+    local stockKey = 'seckill:stock:' .. voucherId
+    local soldOutKey = 'seckill:soldout:' .. voucherId
+    if(shards > 1) then
+        stockKey = 'seckill:stock:{' .. voucherId .. '}:'
+        soldOutKey = 'seckill:soldout:{' .. voucherId .. '}'
+    end
+    -- 3.1.4.库存租约key
+    local leaseKey = 'seckill:lease:' .. voucherId
+
+    -- 3.2.校验秒杀券状态和秒杀时间
+    if(info[1] and info[1] ~= '1') then
+        --3.2.1.已下架或已过期，返回5
+        return 5
+    end
+    if(info[2] and info[3]) then
+        if(now < tonumber(info[2])) then
+            --3.2.2.秒杀尚未开始，返回3
+            return 3
+        end
+        if(now > tonumber(info[3])) then
+            --3.2.3.秒杀已经结束，返回4
+            return 4
+        end
+    end
+    -- 3.2.4.开启排队的秒杀券，校验用户的排队号已经到了放行时间，没有排队号或者还没轮到返回8
+    --       排队号的值为 排队号:放行时间，放行时间在领号时按放行速率算好
+    local ticketsKey = nil
+    if(tonumber(info[5] or '0') > 0) then
+        ticketsKey = 'seckill:room:' .. voucherId .. ':tickets'
+        local ticket = redis.call('hget',ticketsKey,userId)
+        local admitAt = ticket and tonumber(string.match(ticket,':(%d+)$'))
+        if(not admitAt or now < admitAt) then
+            return 8
+        end
+    end
+    -- 3.3.租用模式下校验节点的租约
+    local leased = leaseNode ~= ''
+    local exhausted = false
+    if(leased) then
+        local units = redis.call('hget',leaseKey,leaseNode)
+        if(not units) then
+            --3.3.1.租约已被回收，返回7，节点丢弃本地库存
+            return 7
+        end
+        if(tonumber(units) <= 0) then
+            --3.3.2.租约还在但已经卖完：本地计数多于redis中的租用库存（领取时还有在途的请求、续期时归还了一部分），
+            --      改为从库存key扣减，库存key也没有库存时返回9，节点把本地计数清零后重新租用
+            leased = false
+            exhausted = true
+        end
+    end
+    -- 3.4.已经售罄，直接返回1
+    if(not leased and redis.call('exists',soldOutKey)==1) then
+        return 1
+    end
+    -- 3.5.找到扣减库存的key
+    local hitKey = nil
+    if(leased) then
+        --租用模式下节点已经在本地分配了库存，不需要再找库存key
+        hitKey = leaseKey
+    else
+        --分片时先从用户对应的分片开始找，没有库存再找兄弟分片
+        local home = 0
+        if(shards > 1) then
+            home = tonumber(userId) % shards
+        end
+        for i = 0, shards - 1 do
+            local key = stockKey
+            if(shards > 1) then
+                key = stockKey .. ((home + i) % shards)
+            end
+            local stock = redis.call('get',key)
+            if(not stock) then
+                --3.5.1.库存key不存在，redis数据还没有预热，返回6
+                return 6
+            end
+            if(tonumber(stock)> 0) then
+                hitKey = key
+                break
+            end
+        end
+    end
+    if(hitKey == nil) then
+        --3.6.所有分片都没有库存
+        if(exhausted) then
+            --3.6.1.节点的租约已经卖完，其他节点可能还有租用库存，不设置售罄标记，返回9
+            return 9
+        end
+        --3.6.2.设置售罄标记，返回1
+        redis.call('set',soldOutKey,'1')
+        return 1
+    end
+    --3.7.判断用户是否下单
+    --  set方式：SISMEMBER orderKey userId
+    --  bitmap方式：按userId分块，每块2^20位，块key为 orderKey:bm:{块号}，块号记录在 orderKey:bm 中
+    local bitmap = info[4] == 'bitmap'
+    local chunk, bit
+    if(bitmap) then
+        local uid = tonumber(userId)
+        chunk = math.floor(uid / 1048576)
+        bit = uid % 1048576
+        if(redis.call('getbit',orderKey .. ':bm:' .. chunk,bit)==1) then
+            return 2
+        end
+    elseif(redis.call('sismember',orderKey,userId)==1)then
+        --3.8.存在，说明是重复下单，返回2
+        return 2
+    end
+    --3.9.扣库存 incrby stockKey -1，租用模式下扣减节点租用的库存
+    if(leased) then
+        redis.call('hincrby',leaseKey,leaseNode,-1)
+    else
+        redis.call('incrby',hitKey,-1)
+    end
+    --3.10.下单（保存用户）
+    if(bitmap) then
+        redis.call('setbit',orderKey .. ':bm:' .. chunk,bit,1)
+        redis.call('sadd',orderKey .. ':bm',chunk)
+    else
+        redis.call('sadd',orderKey,userId)
+    end
+    --3.11.发送消息到队列中 XADD stream.orders * k1 v1 k2 v2 ...
+    redis.call('xadd','stream.orders','*','userId',userId,'voucherId',voucherId,'id',orderId)
+    --3.12.写入订单状态，客户端轮询这个状态，不查数据库
+    local statusKey = 'seckill:status:' .. orderId
+    redis.call('hset',statusKey,'status','PENDING','userId',userId,'voucherId',voucherId)
+    redis.call('expire',statusKey,statusTtl)
+    --3.13.加入延时队列，到支付截止时间仍未支付的订单会被取消
+    redis.call('zadd','seckill:delay:orders',now + payTimeout,orderId)
+    --3.14.排队号只能用一次，下单成功后作废
+    if(ticketsKey) then
+        redis.call('hdel',ticketsKey,userId)
+    end
+    return 0
 end
---3.2.判断用户是否下单 SISMEMBER orderKey userId
-if(redis.call('sismember',orderKey,userId)==1)then
-    --3.3.存在，说明是重复下单，返回2
-    return 2
+
+-- 4.依次处理每一组请求
+local results = {}
+for i = 3, #ARGV, 4 do
+    results[#results + 1] = seckill(ARGV[i], ARGV[i + 1], ARGV[i + 2], ARGV[i + 3])
 end
---3.4.扣库存 incrby stockKey -1
-redis.call('incrby',stockKey,-1)
---3.5.下单（保存用户）sadd orderKey userId
-redis.call('sadd',orderKey,userId)
-return 0
\ No newline at end of file
+return results
@@ -0,0 +1,40 @@
+-- 脚本中读取了服务器时间，按命令效果复制（redis 5以上默认开启）
+redis.replicate_commands()
+
+-- 领取排队号，同一个用户重复领取返回原来的号
+-- KEYS[1]：排队号hash（用户id -> 排队号:放行时间），KEYS[2]：排队号计数器，
+-- KEYS[3]：下一个排队号的理论放行时间（毫秒，带小数），KEYS[4]：秒杀券信息hash
+-- ARGV[1]：用户id，ARGV[2]：有效期（秒）
+-- 返回：{排队号, 放行时间（毫秒时间戳）}
+local ticket = redis.call('hget', KEYS[1], ARGV[1])
+if(ticket) then
+    local position, admitAt = string.match(ticket, '^(%d+):(%d+)$')
+    return {tonumber(position), tonumber(admitAt)}
+end
+
+-- 1.当前时间，以redis服务器为准
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+-- 2.按领号的先后和时间计算放行时间，每个号间隔 1000 / rate 毫秒
+--   放行时间不早于领号时间，安静一段时间后再来的人最多连续放行rate个（一秒的量），不会一下子放进来一大批
+--   秒杀开始前领号的人，前rate个在开始时刻放行，之后依次间隔放行
+local info = redis.call('hmget', KEYS[4], 'begin', 'admitRate')
+local rate = tonumber(info[2] or '0')
+local position = redis.call('incr', KEYS[2])
+local admitAt = now
+if(rate > 0) then
+    local interval = 1000 / rate
+    local base = math.max(now, tonumber(info[1] or now))
+    local tat = tonumber(redis.call('get', KEYS[3]) or base)
+    admitAt = math.max(base, tat - (rate - 1) * interval)
+    tat = math.max(tat, base) + interval
+    redis.call('set', KEYS[3], string.format('%.3f', tat), 'EX', ARGV[2])
+end
+admitAt = math.ceil(admitAt)
+
+-- 3.记录排队号
+redis.call('hset', KEYS[1], ARGV[1], position .. ':' .. string.format('%.0f', admitAt))
+redis.call('expire', KEYS[1], ARGV[2])
+redis.call('expire', KEYS[2], ARGV[2])
+return {position, admitAt}
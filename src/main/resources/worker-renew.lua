@@ -0,0 +1,10 @@
+-- 续期workerId租约，同时记录该workerId已经用到的时间
+-- KEYS[1]：租约key，KEYS[2]：已用到的时间key
+-- ARGV[1]：实例标识，ARGV[2]：租约时长（秒），ARGV[3]：已用到的时间
+if(redis.call('get',KEYS[1]) == ARGV[1]) then
+    redis.call('expire',KEYS[1],ARGV[2])
+    redis.call('set',KEYS[2],ARGV[3])
+    return 1
+end
+-- 租约已经被其他实例占用
+return 0
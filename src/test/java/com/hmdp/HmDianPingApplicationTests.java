@@ -5,10 +5,16 @@ import com.hmdp.service.impl.ShopServiceImpl;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillScriptExecutor;
+import com.hmdp.utils.SeckillStockClient;
+import com.hmdp.utils.SnowflakeIdWorker;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -23,6 +29,14 @@ class HmDianPingApplicationTests {
     private CacheClient cacheClient;
     @Resource
     private RedisIdWorker redisIdWorker;
+    @Resource
+    private SeckillScriptExecutor seckillScriptExecutor;
+    @Resource
+    private SnowflakeIdWorker snowflakeIdWorker;
+    @Resource
+    private SeckillStockClient seckillStockClient;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
 
     private ExecutorService es = Executors.newFixedThreadPool(500);
 
@@ -48,6 +62,66 @@ class HmDianPingApplicationTests {
         System.out.println("time=" + (end - begin));
     }
 
+    /**
+     * 对比redis自增（号段模式由hmdp.id.segment-enabled决定）和本地雪花算法生成30000个id的耗时
+     */
+    @Test
+    void testIdWorkerStrategies() throws InterruptedException {
+        long redis = benchmarkIdWorker(() -> redisIdWorker.nextId("bench"));
+        long snowflake = benchmarkIdWorker(snowflakeIdWorker::nextId);
+        System.out.println("redis time=" + redis + ", snowflake time=" + snowflake);
+    }
+
+    private long benchmarkIdWorker(Runnable nextId) throws InterruptedException {
+        CountDownLatch countDownLatch = new CountDownLatch(300);
+        Runnable task = ()->{
+            for (int i = 0;i<100;i++){
+                nextId.run();
+            }
+            countDownLatch.countDown();
+        };
+        long begin = System.currentTimeMillis();
+        for(int i = 0;i<300;i++){
+            es.submit(task);
+        }
+        countDownLatch.await();
+        return System.currentTimeMillis() - begin;
+    }
+
+    /**
+     * 对比100万个连续userId用set和bitmap存储时占用的内存
+     * 使用不存在的优惠券-2、-3，测试完删除
+     */
+    @Test
+    void testBoughtUsersMemory() {
+        List<Long> userIds = new ArrayList<>();
+        for (long i = 1; i <= 1_000_000; i++) {
+            userIds.add(i);
+        }
+        long set = boughtUsersMemory(-2L, "set", userIds);
+        long bitmap = boughtUsersMemory(-3L, "bitmap", userIds);
+        System.out.println("set memory=" + set + ", bitmap memory=" + bitmap);
+    }
+
+    private long boughtUsersMemory(Long voucherId, String encoding, List<Long> userIds) {
+        String voucherKey = RedisConstants.SECKILL_VOUCHER_KEY + voucherId;
+        String orderKey = RedisConstants.SECKILL_ORDER_KEY + voucherId;
+        stringRedisTemplate.opsForHash().put(voucherKey, "buyers", encoding);
+        try {
+            seckillStockClient.addBoughtUsers(voucherId, userIds);
+            return seckillStockClient.boughtUsersMemory(voucherId);
+        } finally {
+            List<String> keys = new ArrayList<>();
+            keys.add(voucherKey);
+            keys.add(orderKey);
+            keys.add(orderKey + ":bm");
+            for (long chunk = 0; chunk <= (userIds.get(userIds.size() - 1) >> 20); chunk++) {
+                keys.add(orderKey + ":bm:" + chunk);
+            }
+            stringRedisTemplate.delete(keys);
+        }
+    }
+
     /**
      * 设置逻辑过期缓存，模拟创建热点数据
      */
@@ -56,4 +130,35 @@ class HmDianPingApplicationTests {
         Shop shop = shopService.getById(1L);
         cacheClient.setWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY+1L,shop,10L, TimeUnit.SECONDS);
     }
+
+    /**
+     * 对比秒杀脚本单独执行和合并执行的吞吐量
+     * 使用一个redis中不存在的优惠券，脚本只做读取就返回，不会扣减真实库存
+     */
+    @Test
+    void testSeckillScriptCoalesce() throws InterruptedException {
+        long direct = benchmarkSeckillScript(false);
+        long coalesced = benchmarkSeckillScript(true);
+        System.out.println("direct time=" + direct + ", coalesced time=" + coalesced);
+    }
+
+    private long benchmarkSeckillScript(boolean coalesce) throws InterruptedException {
+        CountDownLatch countDownLatch = new CountDownLatch(300);
+        Runnable task = ()->{
+            for (int i = 0;i<100;i++){
+                if (coalesce) {
+                    seckillScriptExecutor.executeCoalesced(-1L, (long) i, i);
+                } else {
+                    seckillScriptExecutor.executeDirect(-1L, (long) i, i);
+                }
+            }
+            countDownLatch.countDown();
+        };
+        long begin = System.currentTimeMillis();
+        for(int i = 0;i<300;i++){
+            es.submit(task);
+        }
+        countDownLatch.await();
+        return System.currentTimeMillis() - begin;
+    }
 }
@@ -0,0 +1,37 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BloomFilterTests {
+
+    @Test
+    void testNoFalseNegative() {
+        BloomFilter filter = new BloomFilter(100_000, 0.01);
+        for (long id = 1; id <= 100_000; id++) {
+            filter.put(id);
+        }
+        for (long id = 1; id <= 100_000; id++) {
+            assertTrue(filter.mightContain(id));
+        }
+    }
+
+    /**
+     * 连续id装满后，不存在的id误判率接近设定值
+     */
+    @Test
+    void testFalsePositiveRate() {
+        BloomFilter filter = new BloomFilter(100_000, 0.01);
+        for (long id = 1; id <= 100_000; id++) {
+            filter.put(id);
+        }
+        int falsePositives = 0;
+        for (long id = 1_000_000; id < 1_100_000; id++) {
+            if (filter.mightContain(id)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 1_500, "false positives: " + falsePositives);
+    }
+}
@@ -0,0 +1,83 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LocalCacheTests {
+
+    @Test
+    void testExpireAndInvalidate() {
+        AtomicLong now = new AtomicLong(1000);
+        LocalCache cache = new LocalCache(16, 100, now::get);
+        cache.put("a", "A");
+        assertEquals("A", cache.get("a"));
+        now.addAndGet(100);
+        //超过存活时间
+        assertNull(cache.get("a"));
+        cache.put("a", "A2");
+        assertEquals("A2", cache.get("a"));
+        cache.invalidate("a");
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * 读取期间收到删除通知时，读到的旧数据不能放回缓存
+     */
+    @Test
+    void testStalePutSkipped() {
+        LocalCache cache = new LocalCache(16, 60_000);
+        long generation = cache.generation("a");
+        cache.invalidate("a");
+        cache.put("a", "old", generation);
+        assertNull(cache.get("a"));
+        cache.put("a", "new", cache.generation("a"));
+        assertEquals("new", cache.get("a"));
+    }
+
+    /**
+     * 热点key持续被访问时，大量只访问一次的key扫过也不会把它们挤出缓存
+     */
+    @Test
+    void testScanResistance() {
+        int size = 100;
+        int hot = 50;
+        LocalCache cache = new LocalCache(size, 60_000);
+        for (int i = 0; i < 20_000; i++) {
+            //每访问两个冷key访问一次热点key
+            String key = i % 3 == 0 ? "hot:" + (i / 3 % hot) : "cold:" + i;
+            if (cache.get(key) == null) {
+                cache.put(key, i);
+            }
+        }
+        assertTrue(cache.size() <= size);
+        int hotHits = 0;
+        for (int i = 0; i < hot; i++) {
+            if (cache.get("hot:" + i) != null) {
+                hotHits++;
+            }
+        }
+        assertTrue(hotHits >= hot * 9 / 10, "hot keys kept: " + hotHits);
+    }
+
+    @Test
+    void testFrequentKeyAdmitted() {
+        LocalCache cache = new LocalCache(16, 60_000);
+        for (int i = 0; i < 16; i++) {
+            cache.put("k:" + i, i);
+        }
+        //新key反复被访问后频率超过旧key，可以替换进来
+        for (int i = 0; i < 5; i++) {
+            cache.get("new");
+        }
+        cache.put("new", "N");
+        assertNotNull(cache.get("new"));
+        assertEquals(16, cache.size());
+    }
+}
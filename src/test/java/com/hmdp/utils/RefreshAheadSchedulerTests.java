@@ -0,0 +1,59 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RefreshAheadSchedulerTests {
+
+    @Test
+    void testHotKeyRefreshedBeforeExpire() {
+        AtomicLong now = new AtomicLong(0);
+        RefreshAheadScheduler scheduler = new RefreshAheadScheduler(100, 10, 60_000, 10, now::get);
+        long expireAt = 600_000;
+        for (int i = 0; i < 40; i++) {
+            scheduler.recordAccess("hot", expireAt, scheduledFor -> { });
+        }
+        scheduler.recordAccess("cold", expireAt, scheduledFor -> { });
+        assertTrue(scheduler.isHot("hot"));
+        assertFalse(scheduler.isHot("cold"));
+        //窗口结束，冷key不再跟踪
+        now.set(10_000);
+        scheduler.tick();
+        assertEquals(1, scheduler.trackedKeys());
+        assertEquals(0, scheduler.queued());
+        //进入提前量后提交一次重建，重复扫描不重复提交
+        now.set(expireAt - 30_000);
+        scheduler.tick();
+        scheduler.tick();
+        assertEquals(1, scheduler.queued());
+    }
+
+    @Test
+    void testTouchTrackedKey() {
+        RefreshAheadScheduler scheduler = new RefreshAheadScheduler(1, 10, 60_000, 2);
+        //没有跟踪的key需要登记重建任务
+        assertFalse(scheduler.touch("a", 1));
+        scheduler.recordAccess("a", 1, scheduledFor -> { });
+        assertTrue(scheduler.touch("a", 1));
+        assertTrue(scheduler.isHot("a"));
+        //跟踪的key已满，不再登记新key
+        assertTrue(scheduler.touch("b", 1));
+        assertEquals(1, scheduler.trackedKeys());
+    }
+
+    @Test
+    void testQueueBounded() {
+        RefreshAheadScheduler scheduler = new RefreshAheadScheduler(100, 2, 60_000, 10);
+        assertTrue(scheduler.submit("a", 1, scheduledFor -> { }));
+        //同一个key只排一次
+        assertFalse(scheduler.submit("a", 1, scheduledFor -> { }));
+        assertTrue(scheduler.submit("b", 1, scheduledFor -> { }));
+        assertFalse(scheduler.submit("c", 1, scheduledFor -> { }));
+        assertEquals(1, scheduler.dropped());
+    }
+}
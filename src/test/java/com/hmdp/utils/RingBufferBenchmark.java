@@ -0,0 +1,81 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 环形队列与ArrayBlockingQueue的性能对比，耗时较长且只输出耗时，不在mvn test中运行，需要时手动执行
+ */
+class RingBufferBenchmark {
+
+    private static final int TOTAL = 640_000;
+
+    /**
+     * 多个生产者一个消费者，对比ArrayBlockingQueue和各等待策略下的环形队列，每个元素都要恰好收到一次
+     */
+    @Test
+    void testHandoffAgainstArrayBlockingQueue() throws InterruptedException {
+        for (int producers : new int[]{1, 8, 64}) {
+            BlockingQueue<Long> queue = new ArrayBlockingQueue<>(1024);
+            long queueTime = handoff(producers, queue::put, () -> queue.poll(1, TimeUnit.SECONDS));
+            System.out.println("producers=" + producers + ", ArrayBlockingQueue time=" + queueTime);
+            for (RingBuffer.WaitStrategy strategy : RingBuffer.WaitStrategy.values()) {
+                if (strategy == RingBuffer.WaitStrategy.BUSY_SPIN && Runtime.getRuntime().availableProcessors() <= producers) {
+                    //自旋的线程比CPU多时只会互相抢占，没有对比意义
+                    continue;
+                }
+                RingBuffer<Long> buffer = new RingBuffer<>(1024, strategy);
+                long bufferTime = handoff(producers, buffer::put, () -> buffer.poll(1, TimeUnit.SECONDS));
+                System.out.println("producers=" + producers + ", RingBuffer(" + strategy + ") time=" + bufferTime);
+            }
+        }
+    }
+
+    private long handoff(int producers, Producer producer, Consumer consumer) throws InterruptedException {
+        ExecutorService es = Executors.newFixedThreadPool(producers);
+        int perProducer = TOTAL / producers;
+        CountDownLatch countDownLatch = new CountDownLatch(producers);
+        long begin = System.currentTimeMillis();
+        for (int p = 0; p < producers; p++) {
+            es.submit(() -> {
+                try {
+                    for (long i = 1; i <= perProducer; i++) {
+                        producer.put(i);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                countDownLatch.countDown();
+            });
+        }
+        long sum = 0;
+        for (int i = 0; i < perProducer * producers; i++) {
+            Long value = consumer.poll();
+            if (value == null) {
+                break;
+            }
+            sum += value;
+        }
+        long time = System.currentTimeMillis() - begin;
+        countDownLatch.await();
+        es.shutdown();
+        assertEquals((long) perProducer * (perProducer + 1) / 2 * producers, sum);
+        return time;
+    }
+
+    private interface Producer {
+        void put(Long value) throws InterruptedException;
+    }
+
+    private interface Consumer {
+        Long poll() throws InterruptedException;
+    }
+}
@@ -0,0 +1,86 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RingBufferTests {
+
+    private static final int TOTAL = 8_000;
+
+    @Test
+    void testOfferPoll() {
+        RingBuffer<Integer> buffer = new RingBuffer<>(3, RingBuffer.WaitStrategy.BLOCKING);
+        assertEquals(4, buffer.capacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(i));
+        }
+        //队列已满
+        assertFalse(buffer.offer(4));
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, buffer.poll());
+        }
+        assertNull(buffer.poll());
+        //下一圈继续可用
+        assertTrue(buffer.offer(5));
+        assertEquals(1, buffer.size());
+    }
+
+    /**
+     * 多个生产者一个消费者，各等待策略下每个元素都要恰好收到一次
+     */
+    @Test
+    void testHandoff() throws InterruptedException {
+        for (RingBuffer.WaitStrategy strategy : RingBuffer.WaitStrategy.values()) {
+            int producers = strategy == RingBuffer.WaitStrategy.BUSY_SPIN
+                    ? Math.max(Runtime.getRuntime().availableProcessors() - 1, 1) : 8;
+            RingBuffer<Long> buffer = new RingBuffer<>(64, strategy);
+            handoff(producers, buffer::put, () -> buffer.poll(1, TimeUnit.SECONDS));
+        }
+    }
+
+    private void handoff(int producers, Producer producer, Consumer consumer) throws InterruptedException {
+        ExecutorService es = Executors.newFixedThreadPool(producers);
+        int perProducer = TOTAL / producers;
+        CountDownLatch countDownLatch = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            es.submit(() -> {
+                try {
+                    for (long i = 1; i <= perProducer; i++) {
+                        producer.put(i);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                countDownLatch.countDown();
+            });
+        }
+        long sum = 0;
+        for (int i = 0; i < perProducer * producers; i++) {
+            Long value = consumer.poll();
+            if (value == null) {
+                break;
+            }
+            sum += value;
+        }
+        countDownLatch.await();
+        es.shutdown();
+        assertEquals((long) perProducer * (perProducer + 1) / 2 * producers, sum);
+    }
+
+    private interface Producer {
+        void put(Long value) throws InterruptedException;
+    }
+
+    private interface Consumer {
+        Long poll() throws InterruptedException;
+    }
+}
@@ -0,0 +1,78 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SeckillWaitingRoomTests {
+
+    private static final long BEGIN = 1_700_000_000_000L;
+
+    @Test
+    void testFirstSecondAdmittedAtBegin() {
+        //每秒放行100人，前100个号在开始时放行
+        for (long position = 1; position <= 100; position++) {
+            assertEquals(BEGIN, SeckillWaitingRoom.earliestAdmitAt(BEGIN, 100, position));
+        }
+        assertEquals(BEGIN + 10, SeckillWaitingRoom.earliestAdmitAt(BEGIN, 100, 101));
+        assertEquals(BEGIN + 1000, SeckillWaitingRoom.earliestAdmitAt(BEGIN, 100, 200));
+    }
+
+    @Test
+    void testAdmitAtRoundsUp() {
+        //每秒放行3人，间隔333.3毫秒，向上取整，不会提前放行
+        assertEquals(BEGIN + 334, SeckillWaitingRoom.earliestAdmitAt(BEGIN, 3, 4));
+        assertEquals(BEGIN + 667, SeckillWaitingRoom.earliestAdmitAt(BEGIN, 3, 5));
+        assertEquals(BEGIN + 1000, SeckillWaitingRoom.earliestAdmitAt(BEGIN, 3, 6));
+    }
+
+    /**
+     * 开始时放行rate个之后，任意rate个连续的号放行时间相差至少一秒，并且放行时间不会倒退
+     */
+    @Test
+    void testAdmitRateNeverExceeded() {
+        long rate = 7;
+        for (long position = 1; position <= 1000; position++) {
+            long admitAt = SeckillWaitingRoom.earliestAdmitAt(BEGIN, rate, position);
+            assertTrue(SeckillWaitingRoom.earliestAdmitAt(BEGIN, rate, position + 1) >= admitAt);
+            if (position > rate) {
+                assertTrue(SeckillWaitingRoom.earliestAdmitAt(BEGIN, rate, position + rate) - admitAt >= 999,
+                        "position " + position);
+            }
+        }
+    }
+
+    @Test
+    void testAheadAndParse() {
+        assertEquals(50, SeckillWaitingRoom.aheadOf(BEGIN + 500, 100, BEGIN));
+        assertEquals(0, SeckillWaitingRoom.aheadOf(BEGIN, 100, BEGIN + 500));
+        SeckillWaitingRoom.Ticket ticket = SeckillWaitingRoom.Ticket.parse("42:" + BEGIN);
+        assertEquals(42, ticket.position);
+        assertEquals(BEGIN, ticket.admitAt);
+    }
+
+    /**
+     * 凭证只对签发时的优惠券和用户有效，改号、改时间、换密钥、缺失都校验不通过
+     */
+    @Test
+    void testTicketSignature() {
+        byte[] secret = "secret".getBytes(StandardCharsets.UTF_8);
+        String token = new SeckillWaitingRoom.Ticket(42, BEGIN + 500).sign(secret, 1L, 7L);
+        SeckillWaitingRoom.Ticket ticket = SeckillWaitingRoom.Ticket.verify(token, secret, 1L, 7L);
+        assertNotNull(ticket);
+        assertEquals(42, ticket.position);
+        assertEquals(BEGIN + 500, ticket.admitAt);
+        assertNull(SeckillWaitingRoom.Ticket.verify(token, secret, 1L, 8L));
+        assertNull(SeckillWaitingRoom.Ticket.verify(token, secret, 2L, 7L));
+        assertNull(SeckillWaitingRoom.Ticket.verify(token, "other".getBytes(StandardCharsets.UTF_8), 1L, 7L));
+        assertNull(SeckillWaitingRoom.Ticket.verify(token.replaceFirst("^42:", "1:"), secret, 1L, 7L));
+        assertNull(SeckillWaitingRoom.Ticket.verify("1:" + BEGIN, secret, 1L, 7L));
+        assertNull(SeckillWaitingRoom.Ticket.verify("x:y:z", secret, 1L, 7L));
+        assertNull(SeckillWaitingRoom.Ticket.verify(null, secret, 1L, 7L));
+    }
+}
@@ -0,0 +1,101 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SnowflakeIdWorkerTests {
+
+    private static final long BEGIN_TIMESTAMP = 1640995200L;
+
+    /**
+     * 多线程并发生成，id不重复，高32位是秒级时间戳
+     */
+    @Test
+    void testUnique() throws InterruptedException {
+        SnowflakeIdWorker worker = new SnowflakeIdWorker(7, () -> System.currentTimeMillis() / 1000);
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        ExecutorService es = Executors.newFixedThreadPool(8);
+        CountDownLatch countDownLatch = new CountDownLatch(8);
+        for (int i = 0; i < 8; i++) {
+            es.submit(() -> {
+                for (int j = 0; j < 100_000; j++) {
+                    ids.add(worker.nextId());
+                }
+                countDownLatch.countDown();
+            });
+        }
+        countDownLatch.await();
+        es.shutdown();
+        assertEquals(800_000, ids.size());
+        long id = worker.nextId();
+        long second = (id >>> 32) + BEGIN_TIMESTAMP;
+        assertTrue(Math.abs(System.currentTimeMillis() / 1000 - second) <= 1);
+        assertEquals(7, (id >>> 22) & 511);
+        //标记位为1，与RedisIdWorker的序列号区分开
+        assertEquals(1, (id >>> 31) & 1);
+    }
+
+    /**
+     * JVM不在UTC时区时，雪花id和RedisIdWorker的id用同一个时间基准，按本地时间换算时间和id范围
+     */
+    @Test
+    void testTimeOfInNonUtcZone() {
+        TimeZone zone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("Asia/Shanghai"));
+        try {
+            SnowflakeIdWorker worker = new SnowflakeIdWorker(3, SnowflakeIdWorker::currentSecond);
+            LocalDateTime before = LocalDateTime.now().withNano(0);
+            long id = worker.nextId();
+            LocalDateTime time = RedisIdWorker.timeOf(id);
+            assertTrue(Math.abs(Duration.between(before, time).getSeconds()) <= 1, "timeOf: " + time);
+            assertTrue(RedisIdWorker.minIdOf(time) <= id);
+            assertTrue(RedisIdWorker.minIdOf(time.plusSeconds(1)) > id);
+        } finally {
+            TimeZone.setDefault(zone);
+        }
+    }
+
+    /**
+     * 时钟回拨后沿用上次的时间戳，id继续递增
+     */
+    @Test
+    void testClockBackwards() {
+        AtomicLong now = new AtomicLong(BEGIN_TIMESTAMP + 1000);
+        SnowflakeIdWorker worker = new SnowflakeIdWorker(1, now::get);
+        long before = worker.nextId();
+        now.addAndGet(-10);
+        long after = worker.nextId();
+        assertTrue(after > before);
+        assertEquals(before >>> 32, after >>> 32);
+    }
+
+    /**
+     * 一秒内序列号用完后借用下一秒
+     */
+    @Test
+    void testSequenceOverflow() {
+        AtomicLong now = new AtomicLong(BEGIN_TIMESTAMP + 1000);
+        SnowflakeIdWorker worker = new SnowflakeIdWorker(1, now::get);
+        long first = worker.nextId();
+        long last = first;
+        for (int i = 0; i < (1 << 22); i++) {
+            long id = worker.nextId();
+            assertTrue(id > last);
+            last = id;
+        }
+        assertEquals((first >>> 32) + 1, last >>> 32);
+        assertEquals(0, last & ((1 << 22) - 1));
+    }
+}